@@ -0,0 +1,63 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Routing messages through a ChatRoom full of in-memory sessions:
+ * an "ALL>>" broadcast, whose cost is the fan-out to every session,
+ * and a private message, which should not depend on the room size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    int sessions;
+
+    private static final byte[] BROADCAST = "ALL>>Has anybody seen my keys?".getBytes(Frame.CHARSET);
+    private static final byte[] PRIVATE = "user1>>Have you seen my keys?".getBytes(Frame.CHARSET);
+
+    private ChatRoom room;
+    private Session sender;
+
+    @Setup
+    public void setUp() {
+        room = new ChatRoom(new ServerConfig());
+        for (int i = 0; i < sessions; i++) {
+            Session session = new DiscardingSession();
+            // Snapshot joins keep setting up a big room from being quadratic
+            session.capabilities.add(Capability.USER_LIST);
+            session.capabilities.add(Capability.PRESENCE_DELTA);
+            room.join(session, "user" + i);
+            if (i == 0) {
+                sender = session;
+            }
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        room.route(sender, BROADCAST, Frame.CHARSET);
+    }
+
+    @Benchmark
+    public void privateMessage() {
+        room.route(sender, PRIVATE, Frame.CHARSET);
+    }
+}
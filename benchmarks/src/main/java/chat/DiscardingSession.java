@@ -0,0 +1,26 @@
+package chat;
+
+/**
+ * A session with no client behind it, for benchmarks.  It throws away
+ * every frame as soon as it is queued, so what gets measured is the
+ * cost of routing to it and not of writing to a socket.
+ */
+class DiscardingSession extends Session {
+
+    private static final ServerConfig CONFIG = new ServerConfig();
+    private static final ServerMetrics METRICS = new ServerMetrics();
+
+    DiscardingSession() {
+        super(CONFIG, METRICS);
+    }
+
+    protected void queued() {
+        outbound.poll();
+    }
+
+    protected void disconnect() {
+    }
+
+    protected void closeWhenDrained() {
+    }
+}
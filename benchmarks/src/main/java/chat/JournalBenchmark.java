@@ -0,0 +1,81 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How many messages a second the journal writes, from handing them over
+ * until they are on disk, with and without forcing every group commit.
+ * Each invocation appends a burst, as a busy room would, and waits for
+ * the journal to have written all of it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+
+    private static final int BURST = 1000;
+
+    @Param({"true", "false"})
+    boolean fsync;
+
+    private Path directory;
+    private MessageJournal journal;
+    private Frame message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("chat-journal");
+        ServerConfig config = new ServerConfig();
+        config.journalDirectory = directory.toString();
+        config.journalFsync = fsync;
+        journal = new MessageJournal(config, new ServerMetrics());
+        journal.start();
+        byte[] line = "ALL>>a message of about the usual length for a chat room".getBytes(StandardCharsets.UTF_8);
+        message = Frame.message("Nimal: ", line, 5, line.length, StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        journal.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public long appendBurst() {
+        long target = journal.lastSequence() + BURST;
+        for (int i = 0; i < BURST; i++) {
+            journal.append("Nimal", "ALL", message);
+        }
+        while (journal.lastSequence() < target) {
+            Thread.yield();
+        }
+        return target;
+    }
+}
@@ -0,0 +1,63 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Several threads claiming and releasing names in one SessionRegistry
+ * at once.  With few names the threads keep fighting over the same
+ * ones; with many they mostly do not.  Vary the thread count with -t.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class NameRegistrationBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Registry {
+        @Param({"16", "65536"})
+        int names;
+
+        final SessionRegistry registry = new SessionRegistry();
+        String[] pool;
+
+        @Setup
+        public void setUp() {
+            pool = new String[names];
+            for (int i = 0; i < names; i++) {
+                pool[i] = "user" + i;
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        final Session session = new DiscardingSession();
+        int next = (int) Thread.currentThread().getId() * 7919;
+    }
+
+    @Benchmark
+    public boolean claimAndRelease(Registry registry, Client client) {
+        String name = registry.pool[Math.floorMod(client.next++, registry.names)];
+        boolean claimed = registry.registry.claim(name, client.session);
+        if (claimed) {
+            registry.registry.release(name, client.session);
+        }
+        return claimed;
+    }
+}
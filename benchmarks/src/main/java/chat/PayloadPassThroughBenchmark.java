@@ -0,0 +1,59 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning one inbound message line into the outgoing "MESSAGE name: "
+ * line, by decoding it to a String and encoding the result the way the
+ * server used to, against copying the body bytes into a Frame.  Both
+ * use UTF-8, as binary framing does, so the bytes pass straight through.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadPassThroughBenchmark {
+
+    @Param({"100", "10000"})
+    int bodyLength;
+
+    private byte[] line;
+    private int bodyStart;
+
+    @Setup
+    public void setUp() {
+        char[] body = new char[bodyLength];
+        Arrays.fill(body, 'é');
+        line = ("Kamal>>" + new String(body)).getBytes(StandardCharsets.UTF_8);
+        bodyStart = 7;
+    }
+
+    @Benchmark
+    public int decodeAndEncode() {
+        String input = new String(line, StandardCharsets.UTF_8);
+        String body = input.substring(input.indexOf(">>") + 2);
+        return ("Nimal: " + body).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @Benchmark
+    public int passThrough() {
+        Frame frame = Frame.message("Nimal: ", line, bodyStart, line.length, StandardCharsets.UTF_8);
+        return frame.length(true);
+    }
+}
@@ -0,0 +1,92 @@
+package chat;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Private message throughput as the number of sending threads grows.
+ * Every thread is a client of its own sending to random members of a
+ * shared room, the way handler threads do.  Since routing takes no
+ * global lock, the total throughput should grow about linearly with
+ * the threads until they run out of cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrivateMessageScalingBenchmark {
+
+    private static final int ROOM_SIZE = 10000;
+
+    @State(Scope.Benchmark)
+    public static class Room {
+        final ChatRoom room = new ChatRoom(new ServerConfig());
+        final AtomicInteger senders = new AtomicInteger();
+        final byte[][] lines = new byte[ROOM_SIZE][];
+
+        @Setup
+        public void setUp() {
+            for (int i = 0; i < ROOM_SIZE; i++) {
+                Session session = new DiscardingSession();
+                session.capabilities.add(Capability.USER_LIST);
+                session.capabilities.add(Capability.PRESENCE_DELTA);
+                room.join(session, "user" + i);
+                lines[i] = ("user" + i + ">>Have you seen my keys?").getBytes(Frame.CHARSET);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Sender {
+        Session session;
+
+        @Setup
+        public void setUp(Room room) {
+            session = new DiscardingSession();
+            room.room.join(session, "sender" + room.senders.getAndIncrement());
+        }
+    }
+
+    private static void send(Room room, Sender sender) {
+        byte[] line = room.lines[ThreadLocalRandom.current().nextInt(ROOM_SIZE)];
+        room.room.route(sender.session, line, Frame.CHARSET);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads1(Room room, Sender sender) {
+        send(room, sender);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void threads2(Room room, Sender sender) {
+        send(room, sender);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads4(Room room, Sender sender) {
+        send(room, sender);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void threads8(Room room, Sender sender) {
+        send(room, sender);
+    }
+}
@@ -0,0 +1,105 @@
+package chat;
+
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing the "RECEIVERS>>MESSAGE" header of an inbound line and
+ * resolving the receivers to sessions, with RouteParser against the
+ * split() and HashSet code it replaced.  Run with -prof gc to see the
+ * allocation per message as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteParsingBenchmark {
+
+    @Param({"1", "5", "50"})
+    int receivers;
+
+    private SessionRegistry registry;
+    private Session sender;
+    private String line;
+    private byte[] lineBytes;
+
+    @Setup
+    public void setUp() {
+        registry = new SessionRegistry();
+        for (int i = 0; i < 1000; i++) {
+            Session session = new DiscardingSession();
+            session.name = "user" + i;
+            session.accepted = true;
+            registry.claim(session.name, session);
+        }
+        sender = registry.get("user0");
+
+        StringBuilder header = new StringBuilder();
+        for (int i = 1; i <= receivers; i++) {
+            header.append(i == 1 ? "" : ",").append("user").append(i * 7);
+        }
+        line = header + ">>Are we still on for lunch tomorrow?";
+        lineBytes = line.getBytes(Frame.CHARSET);
+    }
+
+    /**
+     * The way Handler.run() used to do it.
+     */
+    @Benchmark
+    public int splitAndHashSet() {
+        HashSet<Session> sessionsToBeWrittenOn = new HashSet<>();
+        sessionsToBeWrittenOn.add(sender);
+        String[] destructuredInput = line.split(">>");
+        if (destructuredInput.length == 2) {
+            String[] receiverNames = destructuredInput[0].split(",");
+            if (receiverNames.length == 1 && receiverNames[0].equals("ALL")) {
+                sessionsToBeWrittenOn.addAll(registry.sessions());
+            } else {
+                for (String receiverName : receiverNames) {
+                    Session session = registry.get(receiverName);
+                    if (session != null) sessionsToBeWrittenOn.add(session);
+                }
+            }
+        }
+        return sessionsToBeWrittenOn.size() + destructuredInput[1].length();
+    }
+
+    @Benchmark
+    public int routeParser() {
+        RouteParser parser = sender.routeParser();
+        int count = 0;
+        if (parser.parse(line)) {
+            count = parser.resolve(registry, sender) + parser.bodyEnd() - parser.bodyStart();
+        }
+        parser.clear();
+        return count;
+    }
+
+    /**
+     * The same, on the line as it comes off the wire.
+     */
+    @Benchmark
+    public int routeParserBytes() {
+        RouteParser parser = sender.routeParser();
+        int count = 0;
+        if (parser.parse(lineBytes, Frame.CHARSET)) {
+            count = parser.resolve(registry, sender) + parser.bodyEnd() - parser.bodyStart();
+        }
+        parser.clear();
+        return count;
+    }
+}
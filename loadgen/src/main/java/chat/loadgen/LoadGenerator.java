@@ -0,0 +1,344 @@
+package chat.loadgen;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * A headless load generator for the chat server.  It opens many
+ * connections, each of which goes through the usual handshake and then
+ * sends "RECEIVERS>>MESSAGE" lines at a fixed rate, some of them to
+ * "ALL" and the rest to a few of the other generated users.
+ *
+ * Every message carries the System.nanoTime() it was sent at, so when
+ * it comes back as "MESSAGE name: ..." on any of the generator's
+ * connections the delivery latency can be recorded.  The copy the
+ * server echoes back to the sender is not counted.  Once a second the
+ * generator prints the send and delivery rates with the p50, p99 and
+ * p99.9 latency of that second, and a summary over the whole run at
+ * the end.  Options are "--name=value" pairs, for example
+ *
+ *     java -jar loadgen/target/loadgen.jar --clients=2000 --connect-rate=500
+ *         --message-rate=2 --broadcast-ratio=0.01 --payload=200 --duration-s=60
+ */
+public class LoadGenerator {
+
+    /**
+     * The marker that starts the body of every generated message,
+     * followed by the send time and the padding.
+     */
+    private static final String MARKER = "LG ";
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    String host = "localhost";
+    int port = 9001;
+    int clients = 100;
+    int connectRate = 100;
+    double messageRate = 1;
+    double broadcastRatio = 0.1;
+    int receivers = 1;
+    int payload = 100;
+    int durationSeconds = 30;
+    String capabilities = "";
+    String namePrefix = "load";
+
+    private final List<Client> ready = new CopyOnWriteArrayList<>();
+    private final Recorder latencies = new Recorder(TimeUnit.SECONDS.toMicros(60), 3);
+    private final Histogram total = new Histogram(TimeUnit.SECONDS.toMicros(60), 3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private String padding;
+
+    public static void main(String[] args) throws Exception {
+        parse(args).run();
+    }
+
+    /**
+     * Parses "--name=value" pairs, failing on anything unknown.
+     */
+    static LoadGenerator parse(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            switch (name) {
+                case "host":
+                    generator.host = value;
+                    break;
+                case "port":
+                    generator.port = Integer.parseInt(value);
+                    break;
+                case "clients":
+                    generator.clients = Integer.parseInt(value);
+                    break;
+                case "connect-rate":
+                    generator.connectRate = Integer.parseInt(value);
+                    break;
+                case "message-rate":
+                    generator.messageRate = Double.parseDouble(value);
+                    break;
+                case "broadcast-ratio":
+                    generator.broadcastRatio = Double.parseDouble(value);
+                    break;
+                case "receivers":
+                    generator.receivers = Integer.parseInt(value);
+                    break;
+                case "payload":
+                    generator.payload = Integer.parseInt(value);
+                    break;
+                case "duration-s":
+                    generator.durationSeconds = Integer.parseInt(value);
+                    break;
+                case "caps":
+                    generator.capabilities = value.replace(',', ' ');
+                    // Replies are read as lines, so binary frames would not be understood
+                    if ((" " + generator.capabilities + " ").contains(" BINARY ")) {
+                        throw new IllegalArgumentException("The BINARY capability is not supported");
+                    }
+                    break;
+                case "name-prefix":
+                    generator.namePrefix = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        return generator;
+    }
+
+    /**
+     * Connects the clients at the configured rate, lets them talk for
+     * the configured duration, and reports as it goes.
+     */
+    void run() throws InterruptedException {
+        StringBuilder pad = new StringBuilder();
+        while (pad.length() < payload) {
+            pad.append('x');
+        }
+        padding = pad.toString();
+
+        ExecutorService readers = newReaderExecutor();
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(this::report, 1, 1, TimeUnit.SECONDS);
+
+        long sendPeriod = messageRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / messageRate) : 0;
+        long connectPeriod = TimeUnit.SECONDS.toNanos(1) / Math.max(1, connectRate);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            Client client = new Client(namePrefix + i);
+            try {
+                client.connect();
+                readers.execute(client::read);
+                if (sendPeriod > 0) {
+                    senders.scheduleAtFixedRate(client::sendOne,
+                            ThreadLocalRandom.current().nextLong(sendPeriod), sendPeriod, TimeUnit.NANOSECONDS);
+                }
+            } catch (IOException e) {
+                failures.increment();
+            }
+            long nextConnect = start + (i + 1) * connectPeriod;
+            long wait = nextConnect - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+
+        TimeUnit.SECONDS.sleep(durationSeconds);
+        senders.shutdownNow();
+        reporter.shutdownNow();
+        report();
+        for (Client client : ready) {
+            client.close();
+        }
+        readers.shutdownNow();
+
+        System.out.println("--- total ---");
+        System.out.printf("sent=%d delivered=%d failures=%d%n", sent.sum(), delivered.sum(), failures.sum());
+        System.out.printf("latency us: p50=%d p99=%d p99.9=%d max=%d%n",
+                total.getValueAtPercentile(50), total.getValueAtPercentile(99),
+                total.getValueAtPercentile(99.9), total.getMaxValue());
+    }
+
+    private long lastSent;
+    private long lastDelivered;
+
+    /**
+     * Prints the rates and latencies since the last report.
+     */
+    private synchronized void report() {
+        Histogram interval = latencies.getIntervalHistogram();
+        total.add(interval);
+        long sentNow = sent.sum();
+        long deliveredNow = delivered.sum();
+        System.out.printf("clients=%d sent/s=%d delivered/s=%d latency us: p50=%d p99=%d p99.9=%d%n",
+                ready.size(), sentNow - lastSent, deliveredNow - lastDelivered,
+                interval.getValueAtPercentile(50), interval.getValueAtPercentile(99),
+                interval.getValueAtPercentile(99.9));
+        lastSent = sentNow;
+        lastDelivered = deliveredNow;
+    }
+
+    /**
+     * Readers block on their sockets, so they get virtual threads where
+     * the runtime has them and platform threads otherwise.
+     */
+    private static ExecutorService newReaderExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * One generated user.
+     */
+    private class Client {
+        private final String baseName;
+        private String name;
+        private Socket socket;
+        private OutputStream out;
+        private int attempt;
+        private volatile boolean joined;
+
+        Client(String baseName) {
+            this.baseName = baseName;
+            this.name = baseName;
+        }
+
+        void connect() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+        }
+
+        /**
+         * Follows the protocol until the connection closes, recording
+         * the latency of every generated message that arrives.
+         */
+        void read() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("MESSAGE ")) {
+                        received(line);
+                    } else if (line.startsWith("SUBMITNAME")) {
+                        if (attempt++ > 0) {
+                            name = baseName + "-" + attempt;
+                        }
+                        if (line.length() > 10 && !capabilities.isEmpty()) {
+                            write("CAPS " + capabilities);
+                        }
+                        write(name);
+                    } else if (line.startsWith("NAMEACCEPTED")) {
+                        joined = true;
+                        ready.add(this);
+                    } else if (line.startsWith("PING ")) {
+                        write("PONG " + line.substring(5));
+                    }
+                }
+            } catch (IOException e) {
+                // The connection is gone, which the reporting shows.
+            } finally {
+                joined = false;
+                ready.remove(this);
+            }
+        }
+
+        /**
+         * Records a "MESSAGE name: LG time padding" line from one of the
+         * other generated users.  Anything else is ignored, including
+         * messages that merely look like ours.
+         */
+        private void received(String line) {
+            int colon = line.indexOf(": ", 8);
+            if (colon < 0 || !line.startsWith(MARKER, colon + 2) || line.startsWith(name + ": ", 8)) {
+                return;
+            }
+            int start = colon + 2 + MARKER.length();
+            int end = line.indexOf(' ', start);
+            long sentAt;
+            try {
+                sentAt = Long.parseLong(line.substring(start, end < 0 ? line.length() : end));
+            } catch (NumberFormatException e) {
+                return;
+            }
+            latencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt),
+                    TimeUnit.SECONDS.toMicros(60)));
+            delivered.increment();
+        }
+
+        /**
+         * Sends one message, to everybody or to a few random users.
+         */
+        void sendOne() {
+            if (!joined) {
+                return;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            StringBuilder message = new StringBuilder();
+            if (random.nextDouble() < broadcastRatio) {
+                message.append("ALL");
+            } else {
+                // A snapshot, since clients come and go while we pick.
+                Object[] candidates = ready.toArray();
+                if (candidates.length == 0) {
+                    return;
+                }
+                for (int i = 0; i < receivers; i++) {
+                    Client receiver = (Client) candidates[random.nextInt(candidates.length)];
+                    if (receiver == this) {
+                        // Only its echo would come back, which is not counted
+                        continue;
+                    }
+                    message.append(message.length() == 0 ? "" : ",").append(receiver.name);
+                }
+                if (message.length() == 0) {
+                    return;
+                }
+            }
+            message.append(">>").append(MARKER).append(System.nanoTime()).append(' ').append(padding);
+            try {
+                write(message.toString());
+                sent.increment();
+            } catch (IOException e) {
+                failures.increment();
+                close();
+            }
+        }
+
+        private synchronized void write(String line) throws IOException {
+            out.write((line + "\n").getBytes(CHARSET));
+            out.flush();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
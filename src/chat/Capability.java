@@ -0,0 +1,28 @@
+package chat;
+
+/**
+ * Optional protocol extensions a client and the server may agree on.
+ * The server lists the ones it offers after its first "SUBMITNAME",
+ * for example "SUBMITNAME USER_LIST GZIP".  Older clients only look at
+ * the start of the line and never notice.  A client that wants some of
+ * them answers with "CAPS " and the ones it wants, before its name.
+ *
+ *     USER_LIST  the active users come as a few "USER_LIST" snapshot
+ *                lines instead of one "NEW_USER" line per user
+ *     GZIP       large snapshots may come compressed as "USER_LIST_GZ"
+ *     PRESENCE_DELTA
+ *                joins and leaves come batched as "PRESENCE_DELTA"
+ *                lines instead of "NEW_USER" and "REMOVE_USER" lines
+ *     BINARY     everything after the "CAPS" line, both ways, is sent
+ *                as length-prefixed binary frames, see Frame
+ *     HEARTBEAT  the server sends "PING token" when the client has been
+ *                quiet for a while, and drops it if it stays quiet.  The
+ *                client answers with "PONG token", and may send "PING"
+ *                itself, which the server answers the same way
+ *     HISTORY    the server keeps a journal, and answers "HISTORY LAST n"
+ *                and "HISTORY SINCE seq" with what the client may see of
+ *                it.  Only offered when the journal is on
+ */
+public enum Capability {
+    USER_LIST, GZIP, PRESENCE_DELTA, BINARY, HEARTBEAT, HISTORY
+}
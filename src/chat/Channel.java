@@ -0,0 +1,36 @@
+package chat;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A named channel, like "#general", that sessions JOIN and PART.  A
+ * message addressed to the channel is only fanned out to its members,
+ * so its cost grows with the size of the channel rather than with the
+ * number of clients on the server.  Channels share nothing with each
+ * other, so busy channels do not get in each other's way.
+ */
+final class Channel {
+
+    final String name;
+
+    /**
+     * The sessions in the channel.  Iterating is weakly consistent, like
+     * the registry, so members may come and go during a fan-out.
+     */
+    final Set<Session> members = ConcurrentHashMap.newKeySet();
+
+    Channel(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Whether the name can be used for a channel: a "#" followed by
+     * at least one character, and nothing that could be mistaken for
+     * part of a routing header.
+     */
+    static boolean isValidName(String name) {
+        return name.length() > 1 && name.charAt(0) == '#'
+                && name.indexOf(',') < 0 && name.indexOf(' ') < 0 && !name.contains(">>");
+    }
+}
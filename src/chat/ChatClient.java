@@ -0,0 +1,348 @@
+package chat;
+
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import javax.swing.*;
+
+/**
+ * A simple Swing-based client for the chat server.  Graphically
+ * it is a frame with a text field for entering messages and a
+ * textarea to see the whole dialog.
+ *
+ * The client follows the Chat Protocol which is as follows.
+ * When the server sends "SUBMITNAME" the client replies with the
+ * desired screen name.  The server will keep sending "SUBMITNAME"
+ * requests as long as the client submits screen names that are
+ * already in use.  When the server sends a line beginning
+ * with "NAMEACCEPTED" the client is now allowed to start
+ * sending the server arbitrary strings to be broadcast to all
+ * chatters connected to the server.  When the server sends a
+ * line beginning with "MESSAGE " then all characters following
+ * this string should be displayed in its message area.
+ *
+ * When the first "SUBMITNAME" lists protocol extensions the client
+ * asks for the ones it understands with a "CAPS" line before sending
+ * its name.  The active users list then arrives as "USER_LIST" (or
+ * compressed "USER_LIST_GZ") snapshot lines instead of one "NEW_USER"
+ * line per user, and joins and leaves arrive batched as
+ * "PRESENCE_DELTA" lines.
+ *
+ * With BINARY everything after the "CAPS" line goes both ways as the
+ * length-prefixed frames described in Frame, and messages arrive as
+ * MESSAGE frames rather than lines starting with "MESSAGE ".
+ *
+ * Typing "/join #channel" or "/part #channel" sends "JOIN #channel"
+ * or "PART #channel".  The server answers with "JOINED #channel" or
+ * "PARTED #channel", and the channels the client is in are listed
+ * with the active users, so they can be picked as receivers too.
+ *
+ * With HEARTBEAT the server sends "PING token" when the client has
+ * been quiet for a while, and the client answers with "PONG token" so
+ * it is not taken for a dead connection.
+ *
+ * With HISTORY, once its name is accepted the client asks for the
+ * last messages it may see with "HISTORY LAST 50", and shows the
+ * "HISTORY seq text" lines that come back before what is said from
+ * then on.  A "HISTORY_FAILED seq" means the server could not read
+ * the rest.
+ *
+ * Messages sent to names nobody has are kept for them, which the
+ * server confirms with "MAILBOXED names", or refuses with
+ * "MAILBOX_FULL names".  Whatever was kept for our own name arrives
+ * after "MAILBOX count" once the name is accepted.
+ *
+ * A "NAME_CONFLICT" means a user of another server of the cluster got
+ * the same name at the same moment and kept it, and that the server is
+ * about to close the connection.
+ *
+ * Closing the window sends "QUIT", so the server can say goodbye to
+ * the client properly, and a "SERVER_SHUTDOWN" from the server is
+ * shown in the message area.
+ */
+public class ChatClient {
+
+    InputStream in;
+    OutputStream out;
+    FrameDecoder decoder = new FrameDecoder();
+    ByteBuffer readBuffer = ByteBuffer.allocate(8192).limit(0);
+    boolean binary;
+    boolean history;
+    JFrame frame = new JFrame("Chatter");
+    JTextField textField = new JTextField(40);
+    JTextArea messageArea = new JTextArea(8, 40);
+    DefaultListModel<String> activeUsersList = new DefaultListModel<>();
+    JList<String> activeUsersComponent = new JList<>(activeUsersList);
+    JCheckBox broadcastCheck = new JCheckBox("Broadcast");
+
+    /**
+     * The protocol extensions this client understands, which is all of
+     * them.
+     */
+    private static final Set<Capability> CAPABILITIES = EnumSet.allOf(Capability.class);
+
+    /**
+     * Constructs the client by laying out the GUI and registering a
+     * listener with the textfield so that pressing Return in the
+     * listener sends the textfield contents to the server.  Note
+     * however that the textfield is initially NOT editable, and
+     * only becomes editable AFTER the client receives the NAMEACCEPTED
+     * message from the server.
+     */
+    public ChatClient() {
+        textField.setEditable(false);
+        messageArea.setEditable(false);
+        frame.getContentPane().add(textField, BorderLayout.NORTH);
+        frame.getContentPane().add(new JScrollPane(messageArea), BorderLayout.CENTER);
+        frame.getContentPane().add(activeUsersComponent, BorderLayout.EAST);
+        frame.getContentPane().add(broadcastCheck, BorderLayout.AFTER_LAST_LINE);
+        frame.pack();
+
+        textField.addActionListener(new ActionListener() {
+            /**
+             * Responds to pressing the enter key in the textfield by sending
+             * the contents of the text field to the server. Then clear
+             * the text area in preparation for the next message.
+             */
+            public void actionPerformed(ActionEvent e) {
+                // Joining and parting channels
+                String text = textField.getText();
+                if (text.startsWith("/join ") || text.startsWith("/part ")) {
+                    send(Frame.LINE, text.substring(1, 5).toUpperCase() + " " + text.substring(6).trim());
+                    textField.setText("");
+                    return;
+                }
+
+                // Making the structure that is accepted by the server
+                List<String> receivers = activeUsersComponent.getSelectedValuesList();
+                StringBuilder structuredMessage = new StringBuilder();
+                if (receivers.isEmpty() || broadcastCheck.isSelected()) {
+                    structuredMessage.append("ALL");
+                } else {
+                    for (String receiver: receivers) {
+                        structuredMessage.append(receiver).append(",");
+                    }
+                }
+                structuredMessage.append(">>");
+                structuredMessage.append(textField.getText());
+                send(Frame.MESSAGE, structuredMessage.toString());
+                textField.setText("");
+            }
+        });
+
+        frame.addWindowListener(new WindowAdapter() {
+            /**
+             * Leaves cleanly rather than just dropping the connection.
+             */
+            public void windowClosing(WindowEvent e) {
+                if (out != null) {
+                    try {
+                        send(Frame.LINE, "QUIT");
+                    } catch (UncheckedIOException ignored) {
+                        // Gone already
+                    }
+                }
+            }
+        });
+
+
+    }
+
+    /**
+     * Sends one line to the server, as a frame with the given opcode
+     * once BINARY has been agreed on.
+     */
+    private void send(byte opcode, String line) {
+        try {
+            if (binary) {
+                out.write(Frame.encode(opcode, line.getBytes(StandardCharsets.UTF_8)));
+            } else {
+                out.write((line + Frame.LINE_SEPARATOR).getBytes(Frame.CHARSET));
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Prompt for and return the address of the server.
+     */
+    private String getServerAddress() {
+        return JOptionPane.showInputDialog(
+                frame,
+                "Enter IP Address of the Server:",
+                "Welcome to the Chatter",
+                JOptionPane.QUESTION_MESSAGE
+        );
+    }
+
+    /**
+     * Prompt for and return the desired screen name.
+     */
+    private String getName() {
+        return JOptionPane.showInputDialog(
+                frame,
+                "Choose a screen name:",
+                "Screen name selection",
+                JOptionPane.PLAIN_MESSAGE
+        );
+    }
+
+    /**
+     * Connects to the server then enters the processing loop.
+     */
+    private void run() throws IOException {
+
+        // Make connection and initialize streams
+        String serverAddress = getServerAddress();
+        Socket socket = new Socket(serverAddress, 9001);
+        in = socket.getInputStream();
+        out = new BufferedOutputStream(socket.getOutputStream());
+
+        // Process all messages from server, according to the protocol.
+        while (true) {
+            byte[] bytes = decoder.read(in, readBuffer);
+            if (bytes == null) {
+                return;
+            }
+            String line = decoder.text(bytes);
+            if (decoder.opcode() == Frame.MESSAGE) {
+                messageArea.append(line + "\n");
+            } else if (line.startsWith("SUBMITNAME")) {
+                // Asking for the extensions that were offered, if any
+                if (line.length() > 10) {
+                    StringBuilder capabilities = new StringBuilder("CAPS");
+                    for (String offered : line.substring(11).split(" ")) {
+                        for (Capability capability : CAPABILITIES) {
+                            if (capability.name().equals(offered)) {
+                                capabilities.append(" ").append(offered);
+                            }
+                        }
+                    }
+                    send(Frame.LINE, capabilities.toString());
+                    // Both sides switch to frames straight after the CAPS line
+                    binary = capabilities.indexOf(" BINARY") >= 0;
+                    decoder.binary = binary;
+                    history = capabilities.indexOf(" HISTORY") >= 0;
+                }
+                send(Frame.LINE, getName());
+            } else if (line.startsWith("NAMEACCEPTED")) {
+                textField.setEditable(true);
+                if (history) {
+                    // Catching up on what was said before we came
+                    send(Frame.LINE, "HISTORY LAST 50");
+                }
+            } else if (line.startsWith("HISTORY_FAILED ")) {
+                messageArea.append("Some of the earlier messages could not be read.\n");
+            } else if (line.startsWith("HISTORY ")) {
+                messageArea.append(line.substring(line.indexOf(' ', 8) + 1) + "\n");
+            } else if (line.startsWith("NAME_CONFLICT")) {
+                messageArea.append("Somebody on another server took the same name first.\n");
+                textField.setEditable(false);
+            } else if (line.startsWith("SERVER_SHUTDOWN")) {
+                messageArea.append("The server is shutting down.\n");
+                textField.setEditable(false);
+            } else if (line.startsWith("PING ")) {
+                // Showing the server we are still here
+                send(Frame.LINE, "PONG " + line.substring(5));
+            } else if (line.startsWith("MAILBOXED ")) {
+                messageArea.append("Will be delivered when they come: " + line.substring(10) + "\n");
+            } else if (line.startsWith("MAILBOX_FULL ")) {
+                messageArea.append("Could not be delivered to: " + line.substring(13) + "\n");
+            } else if (line.startsWith("MAILBOX ")) {
+                messageArea.append("While you were away (" + line.substring(8) + "):\n");
+            } else if (line.startsWith("MESSAGE")) {
+                messageArea.append(line.substring(8) + "\n");
+            } else if (line.startsWith("USER_LIST_GZ")) {
+                // Catching a compressed page of the active users snapshot
+                addUserListPage(line.substring(13), true);
+            } else if (line.startsWith("USER_LIST")) {
+                // Catching a page of the active users snapshot
+                addUserListPage(line.substring(10), false);
+            } else if (line.startsWith("PRESENCE_DELTA")) {
+                // Catching a batch of joins and leaves, like "+Nimal,-Kamal"
+                for (String change : line.substring(15).split(",")) {
+                    String name = change.substring(1);
+                    if (change.charAt(0) == '+') {
+                        if (!activeUsersList.contains(name)) {
+                            activeUsersList.addElement(name);
+                        }
+                    } else {
+                        activeUsersList.removeElement(name);
+                    }
+                }
+            } else if (line.startsWith("JOINED ")) {
+                // Listing the channel so it can be picked as a receiver
+                if (!activeUsersList.contains(line.substring(7))) {
+                    activeUsersList.addElement(line.substring(7));
+                }
+            } else if (line.startsWith("PARTED ")) {
+                activeUsersList.removeElement(line.substring(7));
+            } else if (line.startsWith("NEW_USER")) {
+                // Catching the message to add a new user to the active users list
+                activeUsersList.addElement(line.substring(8));
+            } else if (line.startsWith("REMOVE_USER")) {
+                // Catching the message to remove the said user from the activer users list
+                String nameToBeRemoved = line.substring(11);
+                for (int i = 0; i < activeUsersList.size(); i++) {
+                    String element = activeUsersList.getElementAt(i);
+                    if (element.equals(nameToBeRemoved)) {
+                        activeUsersList.removeElementAt(i);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds one page of a "USER_LIST" snapshot, which looks like
+     * "2/5 Nimal,Kamal,Saman".  The first page replaces whatever the
+     * list held before.
+     */
+    private void addUserListPage(String page, boolean compressed) throws IOException {
+        int space = page.indexOf(' ');
+        if (page.startsWith("1/")) {
+            activeUsersList.clear();
+        }
+        String names = page.substring(space + 1);
+        if (compressed) {
+            byte[] bytes = Base64.getDecoder().decode(names);
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+                names = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+        for (String name : names.split(",")) {
+            activeUsersList.addElement(name);
+        }
+    }
+
+    /**
+     * Runs the client as an application with a closeable frame.
+     */
+    public static void main(String[] args) throws Exception {
+        ChatClient client = new ChatClient();
+        client.frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        client.frame.setSize(500, 500);
+        client.frame.setVisible(true);
+        client.run();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,802 @@
+package chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The chat protocol itself, shared by every way of servicing clients.
+ * The handlers and event loops only read lines and hand them over;
+ * naming, the active users lists and message routing all happen here.
+ *
+ * All the state lives in a SessionRegistry, so none of the operations
+ * below take a global lock, and sessions may join, leave and send
+ * from any number of threads at once.  Routing a message only reads
+ * the registry, and then touches nothing but the outbound queues of
+ * its recipients, so messages between different people never wait
+ * for each other.  Each client's messages are routed by the one thread
+ * reading from it, and every outbound queue is first in first out, so
+ * everybody sees a sender's messages in the order they were sent.
+ *
+ * In a Cluster the registry also holds a RemoteSession for every user
+ * of the other servers.  Direct messages reach those like any other
+ * session, while broadcasts, channel messages and presence changes are
+ * only sent to the local sessions here and passed on to every other
+ * server once, for it to send to its own.
+ */
+public class ChatRoom {
+
+    /**
+     * Snapshot lines shorter than this are not worth compressing.
+     */
+    private static final int COMPRESSION_THRESHOLD = 1024;
+
+    private final SessionRegistry registry = new SessionRegistry();
+    private final ServerConfig config;
+
+    /**
+     * What all the clients together may send.
+     */
+    private final RateLimiter rateLimiter;
+
+    /**
+     * The names that joined or left since the last PRESENCE_DELTA, in
+     * the order they did.
+     */
+    private final ConcurrentLinkedQueue<String> presenceChanges = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Watches the clients that asked for HEARTBEAT, or null if idle
+     * detection is off.
+     */
+    private final IdleWheel idleWheel;
+
+    /**
+     * Every session that has been greeted and has not left yet, named
+     * or not, so they can all be told when the server shuts down.
+     */
+    private final Set<Session> connected = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Set once the server is shutting down, when everybody leaves at once
+     * and telling the others about every one of them would be wasted.
+     */
+    private volatile boolean shuttingDown;
+
+    /**
+     * Where every routed message is recorded, or null if nothing is kept.
+     */
+    private final MessageJournal journal;
+
+    /**
+     * Answers HISTORY requests out of the journal, or null if there is none.
+     */
+    private final History history;
+
+    /**
+     * Messages for names nobody has, or null if none are kept.
+     */
+    private final Mailboxes mailboxes;
+
+    /**
+     * The other servers, or null if this one is on its own.
+     */
+    private final Cluster cluster;
+
+    /**
+     * Claims of other servers to names a local session has here, and is
+     * being disconnected for, waiting for it to be gone.
+     */
+    private final ConcurrentHashMap<String, RemoteSession> displaced = new ConcurrentHashMap<>();
+
+    public ChatRoom(ServerConfig config) {
+        this(config, null);
+    }
+
+    public ChatRoom(ServerConfig config, MessageJournal journal) {
+        this(config, journal, null);
+    }
+
+    ChatRoom(ServerConfig config, MessageJournal journal, Cluster cluster) {
+        this.config = config;
+        this.journal = journal;
+        this.cluster = cluster;
+        this.history = journal != null ? new History(journal, config) : null;
+        this.mailboxes = config.mailboxSize > 0 && config.mailboxUsers > 0 ? new Mailboxes(config) : null;
+        this.rateLimiter = RateLimiter.global(config);
+        this.idleWheel = config.idleTimeoutSeconds > 0
+                ? new IdleWheel(config.heartbeatSeconds, config.idleTimeoutSeconds)
+                : null;
+    }
+
+    /**
+     * Starts the background work of the room: sending the collected
+     * presence changes every presenceIntervalMillis, and turning the
+     * idle wheel once a second.
+     */
+    public void start() {
+        if (idleWheel != null) {
+            ScheduledExecutorService idle = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "chat-idle");
+                thread.setDaemon(true);
+                return thread;
+            });
+            idle.scheduleAtFixedRate(idleWheel::advance, 1, 1, TimeUnit.SECONDS);
+        }
+        if (config.presenceIntervalMillis > 0) {
+            ScheduledExecutorService presence = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "chat-presence");
+                thread.setDaemon(true);
+                return thread;
+            });
+            presence.scheduleWithFixedDelay(this::flushPresence,
+                    config.presenceIntervalMillis, config.presenceIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Asks a newly connected client for its name, offering the protocol
+     * extensions the server supports.
+     */
+    public void greet(Session session) {
+        connected.add(session);
+        StringBuilder greeting = new StringBuilder("SUBMITNAME");
+        for (Capability capability : Capability.values()) {
+            if (capability != Capability.HISTORY || history != null) {
+                greeting.append(' ').append(capability);
+            }
+        }
+        session.send(greeting.toString());
+    }
+
+    /**
+     * Handles one line from a client that has not been accepted yet.
+     * That is either the extensions it wants, or the name it wants, in
+     * which case it is asked again if the name cannot be had.  Returns
+     * whether the client has now joined.
+     */
+    public boolean handshake(Session session, String line) {
+        if (line.equals("QUIT")) {
+            quit(session);
+            return false;
+        }
+        if (line.startsWith("CAPS ")) {
+            for (String requested : line.substring(5).split(" ")) {
+                for (Capability capability : Capability.values()) {
+                    if (capability.name().equals(requested)) {
+                        session.capabilities.add(capability);
+                    }
+                }
+            }
+            // Whatever is sent from here on, both ways, is framed
+            session.binary = session.capabilities.contains(Capability.BINARY);
+            return false;
+        }
+        if (join(session, line)) {
+            return true;
+        }
+        session.send("SUBMITNAME");
+        return false;
+    }
+
+    /**
+     * Tells a client that a line it sent was longer than the server
+     * takes and has been dropped, asking again for its name if that is
+     * what the line should have been.
+     */
+    public void rejected(Session session) {
+        heard(session);
+        session.send("LINE_TOO_LONG " + config.maxLineBytes);
+        if (!session.accepted) {
+            session.send("SUBMITNAME");
+        }
+    }
+
+    /**
+     * Tries to give the session the name it asked for.  Returns false if
+     * the name is already in use, or could never be addressed because it
+     * is empty, starts with the "#" of a channel or contains the "," or
+     * ">>" of the routing header, in which case the caller should ask
+     * for another one.  Otherwise the session is acknowledged with
+     * "NAMEACCEPTED", is told who is here, and everybody else is told
+     * about it.
+     */
+    public boolean join(Session session, String name) {
+        if (name.isEmpty() || name.startsWith("#") || name.contains(",") || name.contains(">>")) {
+            return false;
+        }
+        if (!registry.claim(name, session)) {
+            return false;
+        }
+        session.name = name;
+        session.send("NAMEACCEPTED");
+        // Marking the session as accepted before taking the roster means a
+        // client joining at the same moment either shows up in our roster or
+        // sees us in its announcement loop below, so nobody is missed.
+        session.accepted = true;
+        if (idleWheel != null && session.capabilities.contains(Capability.HEARTBEAT)) {
+            idleWheel.track(session);
+        }
+
+        // Setting up the active users tab on this client
+        if (session.capabilities.contains(Capability.USER_LIST)) {
+            sendUserList(session);
+        } else {
+            for (Session active : registry.sessions()) {
+                if (active.accepted) {
+                    session.send("NEW_USER" + active.name);
+                }
+            }
+        }
+        // Sending out the message to other clients to add this newly added user into their active users list
+        announce(session, "+" + name, Frame.line("NEW_USER" + name));
+        if (cluster != null) {
+            cluster.claimed(name);
+        }
+        deliverMailbox(session);
+        return true;
+    }
+
+    /**
+     * Sends the active users as "USER_LIST 1/2 Nimal,Kamal,..." lines of
+     * at most rosterPageSize names each, so a join into a big room costs
+     * a handful of lines instead of one per user.  Clients that accept
+     * GZIP get large pages as "USER_LIST_GZ 1/2 " followed by the Base64
+     * of the gzipped, UTF-8 encoded name list.
+     */
+    private void sendUserList(Session session) {
+        List<String> names = new ArrayList<>();
+        for (Session active : registry.sessions()) {
+            if (active.accepted) {
+                names.add(active.name);
+            }
+        }
+        int pageSize = config.rosterPageSize > 0 ? config.rosterPageSize : Math.max(1, names.size());
+        int pages = Math.max(1, (names.size() + pageSize - 1) / pageSize);
+        for (int page = 0; page < pages; page++) {
+            String list = String.join(",", names.subList(page * pageSize, Math.min(names.size(), (page + 1) * pageSize)));
+            String position = (page + 1) + "/" + pages + " ";
+            if (session.capabilities.contains(Capability.GZIP) && list.length() >= COMPRESSION_THRESHOLD) {
+                session.send("USER_LIST_GZ " + position + gzip(list));
+            } else {
+                session.send("USER_LIST " + position + list);
+            }
+        }
+    }
+
+    private static String gzip(String text) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Routes one line from a named session, given as the bytes it came
+     * in, in the charset of the session's framing.  The routing header
+     * is parsed and resolved by the session's own RouteParser, and the
+     * body is copied into the outgoing frame without being decoded, so
+     * apart from that frame nothing is allocated per message.
+     */
+    public void route(Session sender, byte[] input, Charset charset) {
+        // Using the structure : RECEIVERS_LIST or "ALL">>MESSAGE
+        // Receivers list is a comma seperated list of names ex Nimal,Kamal,Saman
+        // Value ALL is the indicator to broadcast the message to all the active users
+        heard(sender);
+        // Commands go ahead of the rate limits, so that a throttled client
+        // can still answer pings, leave a channel, catch up or quit
+        if (startsWith(input, "JOIN #") || startsWith(input, "PART #")) {
+            String command = new String(input, charset);
+            if (isChannelCommand(command)) {
+                channelCommand(sender, command);
+                return;
+            }
+        }
+        if (input.length == 4 && startsWith(input, "QUIT")) {
+            quit(sender);
+            return;
+        }
+        if (startsWith(input, "PING ") || startsWith(input, "PONG ")) {
+            String command = new String(input, charset);
+            if (!command.contains(">>")) {
+                // A PONG has done its job by arriving at all
+                if (command.startsWith("PING ")) {
+                    sender.send("PONG " + command.substring(5));
+                }
+                return;
+            }
+        }
+        if (startsWith(input, "HISTORY ")) {
+            String command = new String(input, charset);
+            if (!command.contains(">>")) {
+                if (history != null) {
+                    history.request(sender, command);
+                } else {
+                    // Nothing is kept, so there is never anything to catch up on
+                    sender.send("HISTORY_END 0");
+                }
+                return;
+            }
+        }
+        RateLimiter.Limit limit = sender.rateLimiter.admitLine(input.length);
+        if (limit != null) {
+            throttle(sender, limit, false);
+            return;
+        }
+        limit = rateLimiter.admitLine(input.length);
+        if (limit != null) {
+            // Not the sender's doing, so it keeps what it was charged
+            sender.rateLimiter.refundLine(input.length);
+            throttle(sender, limit, true);
+            return;
+        }
+        long start = System.nanoTime();
+        RouteParser parser = sender.routeParser();
+        boolean isMessageStructuredProperly = parser.parse(input, charset);
+        int recipients = 1;
+        if (isMessageStructuredProperly) {
+            recipients = parser.isBroadcast()
+                    ? (hasOtherActiveSession(sender) ? 2 : 1)
+                    : parser.resolve(registry, sender);
+        }
+        if (recipients > 1) {
+            int fanOut = parser.isBroadcast() ? registry.size() : recipients;
+            boolean admitted = sender.rateLimiter.admitRecipients(fanOut);
+            boolean global = admitted && !rateLimiter.admitRecipients(fanOut);
+            if (!admitted || global) {
+                if (global) {
+                    sender.rateLimiter.refundRecipients(fanOut);
+                }
+                parser.clear();
+                throttle(sender, RateLimiter.Limit.RECIPIENTS, global);
+                return;
+            }
+        }
+        sender.throttled = false;
+        boolean mailing = mailboxes != null && isMessageStructuredProperly && parser.absentCount() > 0;
+
+        // Lines to a channel say which channel, as "MESSAGE #general Nimal: hi"
+        StringBuilder line = new StringBuilder();
+        Channel channel = parser.channel();
+        if (channel != null) {
+            line.append(channel.name).append(' ');
+        }
+        line.append(sender.name).append(": ");
+        if (recipients == 1 && channel == null && !mailing) {
+            line.append("Couldn't find the receiver(s). Message: ");
+        }
+        // The body goes into the frame as it is, and the frame is encoded
+        // at most once per framing and queued for everyone
+        Frame message = isMessageStructuredProperly
+                ? Frame.message(line.toString(), input, parser.bodyStart(), parser.bodyEnd(), charset)
+                : Frame.message(line.toString(), input, 0, 0, charset);
+        if (journal != null && (recipients > 1 || channel != null)) {
+            journal.append(sender.name, audience(parser, recipients), message);
+        }
+        if (mailing) {
+            mail(sender, parser, message);
+        }
+        if (recipients == 1) {
+            sender.send(message);
+        } else if (parser.isBroadcast()) {
+            recipients = 0;
+            for (Session session : registry.snapshot()) {
+                if (session.accepted && !(session instanceof RemoteSession)) {
+                    session.send(message);
+                    recipients++;
+                }
+            }
+            if (cluster != null) {
+                cluster.broadcast(message);
+            }
+        } else {
+            for (int i = 0; i < recipients; i++) {
+                parser.recipient(i).send(message);
+            }
+        }
+        if (channel != null && cluster != null) {
+            cluster.toChannel(channel.name, message);
+        }
+        parser.clear();
+        sender.metrics.routed(recipients, start);
+    }
+
+    /**
+     * Keeps the message for every receiver nobody had, and tells the
+     * sender "MAILBOXED Kamal,Saman" for those it was kept for and
+     * "MAILBOX_FULL Sunil" for those whose mailbox had no more room.
+     */
+    private void mail(Session sender, RouteParser parser, Frame message) {
+        byte[] payload = message.payload(StandardCharsets.UTF_8);
+        StringJoiner mailed = new StringJoiner(",", "MAILBOXED ", "").setEmptyValue("");
+        StringJoiner refused = new StringJoiner(",", "MAILBOX_FULL ", "").setEmptyValue("");
+        for (int i = 0; i < parser.absentCount(); i++) {
+            String name = parser.absent(i);
+            if (mailboxes.store(name, payload)) {
+                sender.metrics.mailboxed();
+                mailed.add(name);
+                // Somebody may have taken the name after it was looked up,
+                // and emptied the mailbox before this got into it
+                Session joined = registry.get(name);
+                if (joined != null && joined.accepted) {
+                    deliverMailbox(joined);
+                }
+            } else {
+                sender.metrics.mailboxRefused();
+                refused.add(name);
+            }
+        }
+        if (mailed.length() > 0) {
+            sender.send(mailed.toString());
+        }
+        if (refused.length() > 0) {
+            sender.send(refused.toString());
+        }
+    }
+
+    /**
+     * Sends a session whatever was kept for its name, all at once, as
+     * "MAILBOX 3" followed by the messages, oldest first.
+     */
+    private void deliverMailbox(Session session) {
+        Mailboxes.Mailbox mailbox = mailboxes != null ? mailboxes.take(session.name) : null;
+        if (mailbox != null) {
+            session.send("MAILBOX " + mailbox.count());
+            mailbox.deliver(session);
+        }
+    }
+
+    /**
+     * Drops a line that is over a limit.  The first line dropped in a row
+     * gets the sender a "THROTTLED MESSAGES", "THROTTLED BYTES" or
+     * "THROTTLED RECIPIENTS" line, the others are dropped quietly.
+     */
+    private void throttle(Session sender, RateLimiter.Limit limit, boolean global) {
+        sender.metrics.throttled(limit, global);
+        if (!sender.throttled) {
+            sender.throttled = true;
+            sender.send("THROTTLED " + limit);
+        }
+    }
+
+    /**
+     * Notes that a line arrived from the client, for the idle wheel.
+     */
+    private void heard(Session session) {
+        if (idleWheel != null) {
+            idleWheel.heard(session);
+        }
+    }
+
+    /**
+     * Whether the line is "JOIN #channel" or "PART #channel".  Those
+     * have no routing header, so they could never have been messages.
+     */
+    private static boolean isChannelCommand(String input) {
+        return (input.startsWith("JOIN #") || input.startsWith("PART #")) && !input.contains(">>");
+    }
+
+    private static boolean startsWith(byte[] line, String prefix) {
+        if (line.length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the sender to a channel, answering "JOINED #channel", or
+     * takes it out again, answering "PARTED #channel".  Joining a
+     * channel that does not exist creates it, and the last one to
+     * leave a channel removes it.  Invalid names are ignored.
+     */
+    private void channelCommand(Session sender, String input) {
+        String channel = input.substring(5);
+        if (!Channel.isValidName(channel)) {
+            return;
+        }
+        if (input.startsWith("JOIN")) {
+            if (sender.addChannel(channel)) {
+                registry.joinChannel(channel, sender);
+            }
+            sender.send("JOINED " + channel);
+        } else if (sender.removeChannel(channel)) {
+            part(channel, sender);
+            sender.send("PARTED " + channel);
+        }
+    }
+
+    /**
+     * Takes the session out of the channel, and lets the journal forget
+     * the channel's recent history if that was the last member.
+     */
+    private void part(String channel, Session session) {
+        registry.partChannel(channel, session);
+        if (journal != null && registry.channel(channel) == null) {
+            journal.dropRoom(channel);
+        }
+    }
+
+    /**
+     * The number of sessions that have claimed a name.
+     */
+    int activeSessions() {
+        return registry.size();
+    }
+
+    private boolean hasOtherActiveSession(Session sender) {
+        for (Session session : registry.snapshot()) {
+            if (session != sender && session.accepted) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Who a message is for, as the journal records it: "ALL", the name of
+     * the channel, or the names of the recipients.
+     */
+    private static String audience(RouteParser parser, int recipients) {
+        if (parser.isBroadcast()) {
+            return "ALL";
+        }
+        if (parser.channel() != null) {
+            return parser.channel().name;
+        }
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < recipients; i++) {
+            names.append(i == 0 ? "" : ",").append(parser.recipient(i).name);
+        }
+        return names.toString();
+    }
+
+    /**
+     * Says goodbye to a client that sent "QUIT".  It is closed once the
+     * "BYE" and whatever else is queued for it have been written.
+     */
+    private void quit(Session session) {
+        session.send("BYE");
+        session.finish();
+    }
+
+    /**
+     * Tells every client that the server is going down and has them all
+     * closed at once, each as soon as what is queued for it has been
+     * written, or when the drain time runs out.  The caller should have
+     * stopped accepting connections first.
+     */
+    public void shutdown() {
+        shuttingDown = true;
+        Frame notice = Frame.line("SERVER_SHUTDOWN");
+        for (Session session : connected) {
+            session.send(notice);
+            session.finish();
+        }
+    }
+
+    /**
+     * Forgets a session that has gone away and tells everybody else.
+     * Sessions that never got a name are simply ignored, and so are
+     * sessions that have left already.
+     */
+    public void leave(Session session) {
+        connected.remove(session);
+        String name = session.name;
+        if (name == null || !registry.release(name, session)) {
+            return;
+        }
+        for (String channel : session.channels()) {
+            part(channel, session);
+        }
+        if (session.accepted && !shuttingDown) {
+            // Sending out the message to client to remove this user from their lists of active users
+            announce(session, "-" + name, Frame.line("REMOVE_USER" + name));
+        }
+        if (cluster != null) {
+            cluster.released(name);
+            RemoteSession waiting = displaced.remove(name);
+            if (waiting != null) {
+                remoteClaimed(waiting);
+            }
+        }
+    }
+
+    /**
+     * The names of the users connected to this server.
+     */
+    List<String> localNames() {
+        List<String> names = new ArrayList<>();
+        for (Session session : registry.sessions()) {
+            if (session.accepted && !(session instanceof RemoteSession)) {
+                names.add(session.name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Registers a user of another server, unless the name is taken by
+     * an earlier claim.  Between claims from different servers, the one
+     * from the server with the lower id wins, and a local user who loses
+     * the name is told "NAME_CONFLICT" and disconnected.
+     */
+    void remoteClaimed(RemoteSession remote) {
+        String name = remote.name;
+        Session holder = registry.claimOver(name, remote, other -> outranks(remote, other));
+        if (holder instanceof RemoteSession) {
+            if (!outranks(remote, holder)) {
+                return;
+            }
+            announce(holder, "-" + name, Frame.line("REMOVE_USER" + name));
+        } else if (holder != null) {
+            if (remote.peer.id < cluster.nodeId) {
+                displaced.put(name, remote);
+                holder.send("NAME_CONFLICT");
+                holder.finish();
+            }
+            return;
+        }
+        announce(remote, "+" + name, Frame.line("NEW_USER" + name));
+        deliverMailbox(remote);
+    }
+
+    /**
+     * Whether a user of another server takes the name over from another
+     * user of yet another server who has it.  A local holder is never
+     * taken over straight away, it is disconnected first.
+     */
+    private static boolean outranks(RemoteSession remote, Session holder) {
+        if (!(holder instanceof RemoteSession)) {
+            return false;
+        }
+        Cluster.Peer other = ((RemoteSession) holder).peer;
+        return other != remote.peer && other.id > remote.peer.id;
+    }
+
+    /**
+     * Forgets a user of another server who gave the name up.
+     */
+    void remoteReleased(Cluster.Peer peer, String name) {
+        displaced.computeIfPresent(name, (key, waiting) -> waiting.peer == peer ? null : waiting);
+        Session holder = registry.get(name);
+        if (holder instanceof RemoteSession && ((RemoteSession) holder).peer == peer
+                && registry.release(name, holder)) {
+            announce(holder, "-" + name, Frame.line("REMOVE_USER" + name));
+        }
+    }
+
+    /**
+     * Forgets every user of a server that went away.
+     */
+    void nodeDown(int node) {
+        displaced.values().removeIf(waiting -> waiting.peer.id == node);
+        for (Session session : registry.sessions()) {
+            if (session instanceof RemoteSession && ((RemoteSession) session).peer.id == node) {
+                remoteReleased(((RemoteSession) session).peer, session.name);
+            }
+        }
+    }
+
+    /**
+     * Sends a frame passed on by another server to the local users it is
+     * for: "ALL", the members of a "#channel", or the user of a name.
+     */
+    void deliver(String audience, Frame frame) {
+        if (journal != null && frame.isMessage()) {
+            // So HISTORY here also shows what was said on the other
+            // servers.  The sender is not passed on, which only matters
+            // for direct messages, and those are kept for who they are for.
+            journal.append("", audience, frame);
+        }
+        if (audience.equals("ALL")) {
+            for (Session session : registry.snapshot()) {
+                if (session.accepted && !(session instanceof RemoteSession)) {
+                    session.send(frame);
+                }
+            }
+        } else if (audience.startsWith("#")) {
+            Channel channel = registry.channel(audience);
+            if (channel != null) {
+                for (Session member : channel.members) {
+                    if (member.accepted) {
+                        member.send(frame);
+                    }
+                }
+            }
+        } else {
+            Session session = registry.get(audience);
+            if (session != null && session.accepted && !(session instanceof RemoteSession)) {
+                session.send(frame);
+            }
+        }
+    }
+
+    /**
+     * Tells everybody but the session itself that it joined or left.
+     * Clients without PRESENCE_DELTA get the NEW_USER or REMOVE_USER
+     * line straight away, as they always have.  For the others the
+     * change, "+name" or "-name", is collected and sent with all the
+     * other changes of the interval in one "PRESENCE_DELTA" line.
+     */
+    private void announce(Session session, String change, Frame legacyLine) {
+        boolean batched = config.presenceIntervalMillis > 0;
+        Frame delta = batched ? null : Frame.line("PRESENCE_DELTA " + change);
+        for (Session other : registry.sessions()) {
+            if (other == session || !other.accepted || other instanceof RemoteSession) {
+                continue;
+            }
+            if (!other.capabilities.contains(Capability.PRESENCE_DELTA)) {
+                other.send(legacyLine);
+            } else if (!batched) {
+                other.send(delta);
+            }
+        }
+        if (batched) {
+            presenceChanges.add(change.substring(1));
+        }
+    }
+
+    /**
+     * Sends every change collected since the last time as one line, for
+     * example "PRESENCE_DELTA +Nimal,-Kamal", to every client that asked
+     * for presence deltas.  Several changes to one name collapse into one.
+     *
+     * The lists stay eventually consistent: a change is only collected
+     * after the registry reflects it, so a client either already had it
+     * in its snapshot, or gets it in a later delta.  Whether a changed
+     * name is sent as "+" or "-" is not taken from the change but looked
+     * up in the registry now, since a user leaving and another taking the
+     * name straight after may collect their changes in either order.
+     * Deltas may repeat what a client already knows, so clients apply
+     * them as set updates.
+     */
+    void flushPresence() {
+        Set<String> changed = new LinkedHashSet<>();
+        String name;
+        while ((name = presenceChanges.poll()) != null) {
+            changed.remove(name);
+            changed.add(name);
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        StringBuilder line = new StringBuilder("PRESENCE_DELTA ");
+        for (String each : changed) {
+            if (line.length() > 15) {
+                line.append(',');
+            }
+            // A session that is not accepted yet collects its "+" once it is
+            Session holder = registry.get(each);
+            line.append(holder != null && holder.accepted ? '+' : '-').append(each);
+        }
+        Frame delta = Frame.line(line.toString());
+        for (Session session : registry.sessions()) {
+            // Sessions of other servers have no capabilities, so are left out
+            if (session.accepted && session.capabilities.contains(Capability.PRESENCE_DELTA)) {
+                session.send(delta);
+            }
+        }
+    }
+}
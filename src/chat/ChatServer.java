@@ -0,0 +1,395 @@
+package chat;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.ObjectName;
+
+/**
+ * A multithreaded chat room server.  When a client connects the
+ * server requests a screen name by sending the client the
+ * text "SUBMITNAME", and keeps requesting a name until
+ * a unique one is received.  After a client submits a unique
+ * name, the server acknowledges with "NAMEACCEPTED".  Then
+ * all messages from that client will be broadcast to all other
+ * clients that have submitted a unique screen name.  The
+ * broadcast messages are prefixed with "MESSAGE ".
+ *
+ * A client can leave cleanly by sending "QUIT".  The server answers
+ * "BYE" and closes the connection once everything queued for the
+ * client has been written.  When the server process is asked to stop
+ * it stops accepting, sends every client "SERVER_SHUTDOWN" and closes
+ * them all the same way, at once, each within the drain time.
+ *
+ * With a journal a client can also ask for what was said before it
+ * came, with "HISTORY SINCE n" or "HISTORY LAST k", as described in
+ * History.
+ *
+ * Started with --node-id and --peers, the server is one of a Cluster,
+ * and its users can talk to the users of the other servers as if they
+ * were all connected to the same one.
+ *
+ * Because this is just a teaching example to illustrate a simple
+ * chat server, there are a few features that have been left out.
+ * One is very useful and belongs in production code:
+ *
+ *     1. The server should do some logging.
+ */
+public class ChatServer {
+
+    /**
+     * The chat room every handler registers its client with.  It
+     * keeps track of all the named clients, so we can check that new
+     * clients are not registering a name already in use and can easily
+     * broadcast messages.  Created once the options are known.
+     */
+    private static ChatRoom room;
+
+    /**
+     * The counters every handler and writer reports to.
+     */
+    final private static ServerMetrics metrics = new ServerMetrics();
+
+    /**
+     * What accepts new connections, closed to stop accepting them.
+     */
+    private static volatile Closeable listener;
+
+    /**
+     * Where routed messages are recorded, if anywhere.
+     */
+    private static MessageJournal journal;
+    private static volatile boolean shuttingDown;
+
+    /**
+     * The appplication main method, which just listens on a port and
+     * spawns handler threads.  With --mode=virtual the handlers run on
+     * virtual threads, and with --mode=nio the clients are serviced by
+     * the selector-based NioChatServer instead.
+     */
+    public static void main(String[] args) throws Exception {
+        ServerConfig config = ServerConfig.parse(args);
+        if (config.journalDirectory != null) {
+            journal = new MessageJournal(config, metrics);
+            journal.start();
+        }
+        Cluster cluster = config.nodeId > 0 ? new Cluster(config, metrics) : null;
+        room = new ChatRoom(config, journal, cluster);
+        room.start();
+        if (cluster != null) {
+            cluster.start(room);
+        }
+        System.out.println("The chat server is running.");
+
+        // Publish the metrics over JMX, and as text if asked to.
+        metrics.watch(room);
+        metrics.start();
+        ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(metrics, new ObjectName("chat:type=ServerMetrics"));
+        if (config.metricsPort > 0) {
+            new MetricsEndpoint(metrics, config.metricsPort).start();
+        }
+        if (config.statsIntervalSeconds > 0) {
+            metrics.startReporting(config.statsIntervalSeconds);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(config), "chat-shutdown"));
+        if (config.mode == ServerConfig.Mode.NIO) {
+            NioChatServer server = new NioChatServer(room, config, metrics);
+            listener = server;
+            server.run();
+            return;
+        }
+        Executor handlers = config.mode == ServerConfig.Mode.VIRTUAL
+                ? newVirtualThreadPerTaskExecutor()
+                : task -> new Thread(task).start();
+
+        // Writing is done by a shared pool, and only while a client has
+        // something queued, so an idle client costs one thread, not two.
+        // Virtual threads are cheap enough to start one per batch.
+        Executor writers = config.mode == ServerConfig.Mode.VIRTUAL
+                ? handlers
+                : Executors.newCachedThreadPool(task -> {
+                    Thread thread = new Thread(task, "chat-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        ServerSocket serverSocket = new ServerSocket(config.port);
+        listener = serverSocket;
+        try {
+            while (true) {
+                Socket socket  = serverSocket.accept();
+                metrics.accepted();
+                socket.setKeepAlive(true);
+                handlers.execute(new Handler(socket, config, writers));
+            }
+        } catch (SocketException e) {
+            if (!shuttingDown) {
+                throw e;
+            }
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Shuts the server down without losing what is on its way to the
+     * clients: stops accepting, has the room tell every client and close
+     * it once its queue is written, waits for that, though not much
+     * longer than the drain time, and then closes the journal, which
+     * writes what is left in it.  Runs when the process is told to stop.
+     */
+    private static void shutdown(ServerConfig config) {
+        shuttingDown = true;
+        try {
+            Closeable accepting = listener;
+            if (accepting != null) {
+                accepting.close();
+            }
+        } catch (IOException ignored) {
+        }
+        room.shutdown();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.drainMillis + 1000);
+        try {
+            while (metrics.getOpenConnections() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            if (journal != null) {
+                journal.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long open = metrics.getOpenConnections();
+        System.out.println("The chat server has shut down"
+                + (open > 0 ? ", leaving " + open + " connections open." : "."));
+    }
+
+    /**
+     * Returns Executors.newVirtualThreadPerTaskExecutor().  It is looked
+     * up reflectively so that the server still builds and runs in the
+     * other modes on Java versions that predate virtual threads.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("--mode=virtual needs Java 21 or later, running on "
+                    + System.getProperty("java.version"));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create the virtual thread executor", e);
+        }
+    }
+
+    /**
+     * A handler thread class.  Handlers are spawned from the listening
+     * loop and are responsible for a dealing with a single client
+     * and broadcasting its messages.  Whenever something is queued for
+     * the client while nothing is being written to it, the handler
+     * hands a writer task to the shared writers, which drains the
+     * session's outbound queue to the client and then lets the thread
+     * go again.
+     */
+    private static class Handler extends Session implements Runnable {
+        private Socket socket;
+        private Executor writers;
+        private long flushWindowMillis;
+        private InputStream in;
+        private OutputStream out;
+        private final FrameDecoder decoder;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(8192).limit(0);
+        private long drainMillis;
+
+        /**
+         * Set while a writer task has been handed out and has not let go
+         * yet, so there is never more than one.
+         */
+        private final AtomicBoolean writing = new AtomicBoolean();
+
+        /**
+         * Set once the handler is done with the client.  The writer then
+         * writes what is still queued and counts down writerDone.  A flag
+         * rather than a frame in the queue, since the queue may drop its
+         * oldest frames when it is full.
+         */
+        private volatile boolean ending;
+        private final CountDownLatch writerDone = new CountDownLatch(1);
+
+        /**
+         * Constructs a handler thread, squirreling away the socket and
+         * the writers to write to it with.  All the interesting work is
+         * done in the run method.
+         */
+        public Handler(Socket socket, ServerConfig config, Executor writers) {
+            super(config, ChatServer.metrics);
+            this.socket = socket;
+            this.writers = writers;
+            this.flushWindowMillis = config.flushWindowMillis;
+            this.drainMillis = config.drainMillis;
+            this.decoder = new FrameDecoder(config, ChatServer.metrics);
+        }
+
+        /**
+         * Hands a writer task out unless one is at work already.
+         */
+        protected void queued() {
+            if (writing.compareAndSet(false, true)) {
+                writers.execute(this::writeQueued);
+            }
+        }
+
+        /**
+         * Closing the socket makes the pending read fail, and the
+         * handler then cleans up as for any other broken connection.
+         */
+        protected void disconnect() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * Shutting down the input makes the pending read see the end of
+         * the stream, and the handler then closes as it always does, which
+         * lets the writer finish first.
+         */
+        protected void closeWhenDrained() {
+            try {
+                socket.shutdownInput();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * Services this thread's client by repeatedly requesting a
+         * screen name until a unique one has been submitted, then
+         * registers the client with the chat room, then repeatedly
+         * gets inputs and has the room route them.
+         */
+        public void run() {
+            try {
+
+                // Take the socket's byte streams, which the decoder cuts into
+                // lines or binary frames.  Queued frames are already encoded,
+                // so they go to a buffered byte stream that the writer
+                // flushes once per batch rather than once per line.
+                in = socket.getInputStream();
+                out = new BufferedOutputStream(socket.getOutputStream());
+
+                // Request a name from this client.  The room keeps requesting
+                // until a name is submitted that is not already used, and
+                // claims the name and registers the client in one step.
+                room.greet(this);
+                while (!accepted && !finishing) {
+                    byte[] line = decoder.read(in, readBuffer);
+                    if (line == null) {
+                        return;
+                    }
+                    if (line == FrameDecoder.REJECTED) {
+                        room.rejected(this);
+                        continue;
+                    }
+                    room.handshake(this, decoder.text(line));
+                    decoder.binary = binary;
+                }
+
+                // Accept messages from this client and broadcast them.
+                // Ignore other clients that cannot be broadcast to.
+                while (!finishing) {
+                    byte[] input = decoder.read(in, readBuffer);
+                    if (input == null) {
+                        return;
+                    }
+                    if (input == FrameDecoder.REJECTED) {
+                        room.rejected(this);
+                        continue;
+                    }
+                    room.route(this, input, decoder.charset());
+                }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            } finally {
+                // This client is going down! Remove it from the room,
+                // which tells everybody else, give its writer the drain time
+                // to write what is still queued, and close its socket.
+                room.leave(this);
+                closed = true;
+                ending = true;
+                queued();
+                try {
+                    writerDone.await(drainMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                // A writer still stuck on a client that does not read fails
+                // once the socket is closed, and lets its thread go.
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+                metrics.closed();
+            }
+        }
+
+        /**
+         * Writes queued frames to the client until the queue is empty,
+         * then lets go, unless something was queued meanwhile.  Everything
+         * that is queued, or that arrives within the flush window of the
+         * first frame, goes out in one flush.  Once the handler is ending
+         * and everything is written, or if the client cannot be written to
+         * any more, the writer never lets go again, so no more writers are
+         * handed out, and counts down writerDone.
+         */
+        private void writeQueued() {
+            try {
+                do {
+                    Frame frame;
+                    while ((frame = outbound.poll()) != null) {
+                        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushWindowMillis);
+                        int frames = 0;
+                        long bytes = 0;
+                        do {
+                            frame.writeTo(out, binary);
+                            frames++;
+                            bytes += frame.length(binary);
+                            frame = flushWindowMillis > 0
+                                    ? outbound.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                                    : outbound.poll();
+                        } while (frame != null);
+                        out.flush();
+                        metrics.flushed(frames, bytes);
+                    }
+                    if (ending) {
+                        writerDone.countDown();
+                        return;
+                    }
+                    writing.set(false);
+                    // Whoever queued after the queue was found empty may have
+                    // seen the flag still set, so look once more.
+                } while ((!outbound.isEmpty() || ending) && writing.compareAndSet(false, true));
+            } catch (InterruptedException e) {
+                // The writers are being shut down.
+                writerDone.countDown();
+            } catch (IOException e) {
+                disconnect();
+                writerDone.countDown();
+            }
+        }
+    }
+}
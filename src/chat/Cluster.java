@@ -0,0 +1,401 @@
+package chat;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Joins this server with the other servers of a cluster, so that users
+ * connected to different servers can talk to each other as if they were
+ * all on one.
+ *
+ * Every server keeps a connection open to each of the others, which it
+ * only ever writes to, and reads from the connections the others open to
+ * it.  A server only takes connections from the addresses its peers'
+ * hosts resolve to.  It starts each with "CHALLENGE nonce", a random
+ * nonce, and the other server answers "HELLO id proof", where the proof
+ * is the HMAC-SHA256 of the nonce and the id keyed with the shared
+ * clusterSecret, or "-" if there is none, and then "CLAIM name" for
+ * each of its users.  From then on it says "CLAIM name" and "RELEASE
+ * name" as users come and go.  So every server knows who is connected
+ * where, and keeps a RemoteSession in its registry for each user of
+ * another server.  Since what follows the handshake is not protected,
+ * the cluster port belongs on a network only the servers can reach.
+ * Everything goes as binary frames, see Frame, and a frame for users of
+ * the other server follows a "TO audience" line that says who it is for:
+ *
+ *     TO Nimal      the user of that name
+ *     TO ALL        all users of that server
+ *     TO #general   its users in the channel
+ *
+ * A broadcast or a channel message goes to each server once, however
+ * many of its users get it, and a direct message once for each user.
+ * Each server journals the messages it is passed, so HISTORY shows
+ * what was said on all of them, numbered by the server asked.
+ *
+ * Two users on different servers may claim the same name at the same
+ * moment.  Each server sees the other's claim, and the one on the server
+ * with the lower id keeps the name, while the other is told
+ * "NAME_CONFLICT" and disconnected.
+ *
+ * A connection that breaks is made again every second.  A server that
+ * goes away takes its users with it, and a server that comes back, or
+ * reconnects, claims them all again.  Since writing to a server that
+ * went away does not always fail straight off, the connection to a
+ * server is made again as soon as the one from it breaks.  Frames for
+ * a server that is not connected, or whose connection cannot keep up,
+ * are dropped and counted.
+ */
+final class Cluster {
+
+    /**
+     * The most frames waiting for one other server.
+     */
+    private static final int QUEUE_CAPACITY = 65536;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final int NONCE_BYTES = 16;
+    private static final String NO_PROOF = "-";
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private static final Frame TO_ALL = Frame.line("TO ALL");
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    final int nodeId;
+    private final ServerConfig config;
+    private final ServerMetrics metrics;
+
+    /**
+     * The longest frame another server may send: a message with the name
+     * of its sender in front, or a header or claim with names in it.
+     */
+    private final int maxFrameBytes;
+
+    /**
+     * The other servers by id.  Fixed once constructed.
+     */
+    private final Map<Integer, Peer> peers = new HashMap<>();
+
+    /**
+     * The connection each other server currently talks to us over, so
+     * that when an older one breaks after a newer one came up nobody is
+     * dropped.
+     */
+    private final ConcurrentHashMap<Integer, Object> links = new ConcurrentHashMap<>();
+
+    private volatile ChatRoom room;
+
+    Cluster(ServerConfig config, ServerMetrics metrics) {
+        this.nodeId = config.nodeId;
+        this.config = config;
+        this.metrics = metrics;
+        this.maxFrameBytes = (int) Math.min(Integer.MAX_VALUE, 2L * config.maxLineBytes + 16);
+        for (String entry : config.peers.split(",")) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int at = entry.indexOf('@');
+            int colon = entry.lastIndexOf(':');
+            if (at < 0 || colon < at) {
+                throw new IllegalArgumentException("Peers are given as id@host:port, not " + entry);
+            }
+            int id = Integer.parseInt(entry.substring(0, at));
+            if (id == nodeId) {
+                continue;
+            }
+            String host = entry.substring(at + 1, colon);
+            peers.put(id, new Peer(id, host, Integer.parseInt(entry.substring(colon + 1))));
+        }
+    }
+
+    /**
+     * Starts listening for the other servers and connecting to them.
+     */
+    void start(ChatRoom room) throws IOException {
+        this.room = room;
+        InetAddress bind = config.clusterBind != null ? InetAddress.getByName(config.clusterBind) : null;
+        ServerSocket listener = new ServerSocket(config.clusterPort, 50, bind);
+        Thread accepting = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = listener.accept();
+                    Thread receiving = new Thread(() -> receive(socket), "chat-peer-in");
+                    receiving.setDaemon(true);
+                    receiving.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "chat-cluster");
+        accepting.setDaemon(true);
+        accepting.start();
+        for (Peer peer : peers.values()) {
+            Thread connecting = new Thread(peer, "chat-peer-" + peer.id);
+            connecting.setDaemon(true);
+            connecting.start();
+        }
+    }
+
+    /**
+     * Tells the other servers that a user of this one took a name.
+     */
+    void claimed(String name) {
+        toAll(Frame.line("CLAIM " + name));
+    }
+
+    /**
+     * Tells the other servers that a user of this one gave its name up.
+     */
+    void released(String name) {
+        toAll(Frame.line("RELEASE " + name));
+    }
+
+    /**
+     * Passes a message for everybody on to the other servers.
+     */
+    void broadcast(Frame message) {
+        toAll(TO_ALL, message);
+    }
+
+    /**
+     * Passes a message to a channel on to the other servers.
+     */
+    void toChannel(String channel, Frame message) {
+        toAll(Frame.line("TO " + channel), message);
+    }
+
+    private void toAll(Frame... frames) {
+        for (Peer peer : peers.values()) {
+            peer.send(frames);
+        }
+    }
+
+    /**
+     * Reads what another server sends until the connection breaks.
+     */
+    private void receive(Socket socket) {
+        int node = -1;
+        Object link = new Object();
+        try (socket) {
+            if (peers.values().stream().noneMatch(peer -> peer.isAt(socket.getInetAddress()))) {
+                System.out.println("Refused a cluster connection from " + socket.getInetAddress());
+                return;
+            }
+            InputStream in = socket.getInputStream();
+            FrameDecoder decoder = new FrameDecoder(maxFrameBytes);
+            decoder.binary = true;
+            ByteBuffer buffer = ByteBuffer.allocate(65536).limit(0);
+            byte[] nonce = new byte[NONCE_BYTES];
+            RANDOM.nextBytes(nonce);
+            String challenge = HexFormat.of().formatHex(nonce);
+            OutputStream out = socket.getOutputStream();
+            Frame.line("CHALLENGE " + challenge).writeTo(out, true);
+            out.flush();
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            byte[] bytes = decoder.read(in, buffer);
+            String[] hello = bytes != null ? decoder.text(bytes).split(" ") : new String[0];
+            Peer peer = hello.length == 3 && hello[0].equals("HELLO") ? peers.get(Integer.parseInt(hello[1])) : null;
+            if (peer == null || !peer.isAt(socket.getInetAddress())
+                    || !MessageDigest.isEqual(proof(challenge, peer.id).getBytes(StandardCharsets.US_ASCII),
+                            hello[2].getBytes(StandardCharsets.US_ASCII))) {
+                System.out.println("Refused a cluster connection from " + socket.getInetAddress());
+                return;
+            }
+            socket.setSoTimeout(0);
+            node = peer.id;
+            links.put(node, link);
+            // Whatever was known about the server is out of date, and it
+            // is about to claim all its users again
+            room.nodeDown(node);
+            String audience = null;
+            while ((bytes = decoder.read(in, buffer)) != null) {
+                if (audience != null) {
+                    Frame frame = decoder.opcode() == Frame.MESSAGE
+                            ? Frame.message("", bytes, 0, bytes.length, StandardCharsets.UTF_8)
+                            : Frame.line(decoder.text(bytes));
+                    room.deliver(audience, frame);
+                    audience = null;
+                    continue;
+                }
+                String line = decoder.text(bytes);
+                if (line.startsWith("TO ")) {
+                    audience = line.substring(3);
+                } else if (line.startsWith("CLAIM ")) {
+                    room.remoteClaimed(new RemoteSession(config, metrics, peer, line.substring(6)));
+                } else if (line.startsWith("RELEASE ")) {
+                    room.remoteReleased(peer, line.substring(8));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // The server went away, broke the protocol, or is not one of ours
+        } finally {
+            if (node >= 0 && links.remove(node, link)) {
+                room.nodeDown(node);
+                peers.get(node).reconnect();
+            }
+        }
+    }
+
+    /**
+     * What proves that the server of the given id knows the secret, in
+     * answer to the challenge.
+     */
+    private String proof(String challenge, int id) {
+        if (config.clusterSecret == null) {
+            return NO_PROOF;
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(config.clusterSecret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            byte[] proof = mac.doFinal((challenge + " " + id).getBytes(StandardCharsets.US_ASCII));
+            return HexFormat.of().formatHex(proof);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /**
+     * Another server of the cluster, and the connection to it.
+     */
+    final class Peer implements Runnable {
+
+        private static final Frame[] WAKE_UP = new Frame[0];
+
+        final int id;
+        private final String host;
+        private final int port;
+        private final BlockingQueue<Frame[]> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        private volatile Socket socket;
+
+        Peer(int id, String host, int port) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Queues frames for the server, to be written one right after the
+         * other.  Never blocks.
+         */
+        void send(Frame... frames) {
+            if (!queue.offer(frames)) {
+                metrics.peerDropped();
+            }
+        }
+
+        /**
+         * Whether the server's host resolves to the address.
+         */
+        boolean isAt(InetAddress address) {
+            try {
+                for (InetAddress known : InetAddress.getAllByName(host)) {
+                    if (known.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                // Then nobody is at it
+            }
+            return false;
+        }
+
+        /**
+         * Closes the connection to the server, so that it is made again
+         * and the server hears of our users.
+         */
+        void reconnect() {
+            Socket connected = socket;
+            if (connected != null) {
+                try {
+                    connected.close();
+                } catch (IOException e) {
+                    // It is closed either way
+                }
+                queue.offer(WAKE_UP);
+            }
+        }
+
+        /**
+         * Keeps connecting to the server, and writes the queued frames to
+         * it while connected.
+         */
+        @Override
+        public void run() {
+            List<Frame[]> batch = new ArrayList<>();
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    this.socket = socket;
+                    socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                    FrameDecoder decoder = new FrameDecoder(maxFrameBytes);
+                    decoder.binary = true;
+                    byte[] bytes = decoder.read(socket.getInputStream(), ByteBuffer.allocate(256).limit(0));
+                    String challenge = bytes != null ? decoder.text(bytes) : "";
+                    if (!challenge.startsWith("CHALLENGE ")) {
+                        throw new IOException("No challenge from server " + id);
+                    }
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+                    // What was queued while disconnected is for users the
+                    // server has forgotten, and it is about to hear of ours
+                    int stale = queue.size();
+                    queue.clear();
+                    for (int i = 0; i < stale; i++) {
+                        metrics.peerDropped();
+                    }
+                    Frame.line("HELLO " + nodeId + " " + proof(challenge.substring(10), nodeId)).writeTo(out, true);
+                    for (String name : room.localNames()) {
+                        Frame.line("CLAIM " + name).writeTo(out, true);
+                    }
+                    out.flush();
+                    while (!socket.isClosed()) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch);
+                        for (Frame[] frames : batch) {
+                            for (Frame frame : frames) {
+                                frame.writeTo(out, true);
+                            }
+                        }
+                        batch.clear();
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        metrics.peerDropped();
+                    }
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package chat;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values that many threads can record
+ * into without waiting for each other.  Values are counted in buckets
+ * that are eight to a power of two, so every value is known to within
+ * an eighth, which is plenty for latencies and fan-out sizes, and
+ * recording is a couple of shifts and two LongAdder increments.
+ *
+ * Every bucket is a LongAdder of its own rather than a slot of one
+ * atomic array, since the routing threads mostly hit the same few
+ * buckets, and a LongAdder spreads threads that collide over cells of
+ * their own.  Reading adds the cells up, which only the rare reader
+ * pays for.
+ */
+final class Distribution {
+
+    /**
+     * Values below this get a bucket each; above it eight buckets
+     * share every power of two.
+     */
+    private static final int SUB_BUCKETS = 8;
+
+    private static final int BUCKETS = (64 - 2) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    Distribution() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts one value.  Negative values count as 0.
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucket(value)].increment();
+        sum.add(value);
+    }
+
+    /**
+     * The number of values recorded so far.
+     */
+    long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts[i].sum();
+        }
+        return count;
+    }
+
+    /**
+     * The total of the values recorded so far.
+     */
+    long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * The value that the given fraction of the recorded values are at
+     * or below, for example 0.99 for the 99th percentile, rounded up to
+     * the top of its bucket.  0 if nothing has been recorded.
+     */
+    long percentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return i == BUCKETS - 1 ? Long.MAX_VALUE : lowestValue(i + 1) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return (exponent - 2) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 2;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 3);
+    }
+}
@@ -0,0 +1,197 @@
+package chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One protocol line, encoded for the wire at most once per framing.  A
+ * frame is immutable, so a message going to many clients is encoded a
+ * single time and the very same frame is queued for every one of them.
+ *
+ * Clients that asked for the BINARY capability get binary frames
+ * instead of lines:
+ *
+ *     opcode    one byte, LINE or MESSAGE
+ *     length    the payload length as an unsigned LEB128 varint
+ *     payload   that many bytes of UTF-8, which may contain newlines
+ *
+ * A LINE frame carries any protocol line, without its line separator.
+ * From the server a MESSAGE frame carries what follows "MESSAGE " in
+ * the text protocol, and from a client it carries "RECEIVERS>>MESSAGE",
+ * so a message can be told from everything else by its first byte.
+ *
+ * A routed message is kept as the bytes it arrived in rather than as
+ * text.  Those go out as they are to every client whose framing uses
+ * the same charset, and are only decoded for the others.
+ */
+public final class Frame {
+
+    /**
+     * Lines are encoded the same way a PrintWriter over the socket would
+     * encode them, which is also what the clients expect to decode.
+     */
+    static final Charset CHARSET = Charset.defaultCharset();
+    static final String LINE_SEPARATOR = System.lineSeparator();
+
+    static final byte LINE = 1;
+    static final byte MESSAGE = 2;
+
+    private static final byte[] MESSAGE_PREFIX = "MESSAGE ".getBytes(CHARSET);
+    private static final byte[] SEPARATOR = LINE_SEPARATOR.getBytes(CHARSET);
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    private final byte opcode;
+
+    /**
+     * What the frame carries, either as text or as bytes in a charset.
+     */
+    private final String text;
+    private final byte[] payload;
+    private final Charset charset;
+
+    /**
+     * The encodings, made by whichever writer needs them first.  Two
+     * writers racing may both encode, which does no harm.
+     */
+    private volatile byte[] lineBytes;
+    private volatile byte[] binaryBytes;
+
+    private Frame(byte opcode, String text) {
+        this.opcode = opcode;
+        this.text = text;
+        this.payload = null;
+        this.charset = null;
+    }
+
+    private Frame(byte opcode, byte[] payload, Charset charset) {
+        this.opcode = opcode;
+        this.text = null;
+        this.payload = payload;
+        this.charset = charset;
+    }
+
+    /**
+     * A protocol line.
+     */
+    public static Frame line(String line) {
+        return new Frame(LINE, line);
+    }
+
+    /**
+     * A routed message made of the prefix, like "Nimal: ", followed by
+     * the bytes from start to end of a line that came in the given
+     * charset.  The bytes are copied once and never decoded unless a
+     * client needs them in another charset.
+     */
+    public static Frame message(String prefix, byte[] line, int start, int end, Charset charset) {
+        byte[] head = prefix.getBytes(charset);
+        byte[] payload = new byte[head.length + end - start];
+        System.arraycopy(head, 0, payload, 0, head.length);
+        System.arraycopy(line, start, payload, head.length, end - start);
+        return new Frame(MESSAGE, payload, charset);
+    }
+
+    /**
+     * Returns a read-only view of the encoded bytes with a position of
+     * its own, so every recipient can be written at its own pace
+     * without copying the bytes.
+     */
+    public ByteBuffer buffer(boolean binary) {
+        return ByteBuffer.wrap(bytes(binary)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the encoded bytes to a stream.
+     */
+    public void writeTo(OutputStream out, boolean binary) throws IOException {
+        out.write(bytes(binary));
+    }
+
+    /**
+     * The number of encoded bytes.
+     */
+    public int length(boolean binary) {
+        return bytes(binary).length;
+    }
+
+    private byte[] bytes(boolean binary) {
+        if (binary) {
+            byte[] bytes = binaryBytes;
+            if (bytes == null) {
+                bytes = encode(opcode, payload(StandardCharsets.UTF_8));
+                binaryBytes = bytes;
+            }
+            return bytes;
+        }
+        byte[] bytes = lineBytes;
+        if (bytes == null) {
+            byte[] line = payload(CHARSET);
+            byte[] prefix = opcode == MESSAGE ? MESSAGE_PREFIX : NO_PREFIX;
+            bytes = new byte[prefix.length + line.length + SEPARATOR.length];
+            System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+            // A line cannot hold a newline, so one that came in a binary
+            // frame is flattened for the clients that read lines.
+            for (int i = 0; i < line.length; i++) {
+                byte b = line[i];
+                bytes[prefix.length + i] = b == '\n' || b == '\r' ? (byte) ' ' : b;
+            }
+            System.arraycopy(SEPARATOR, 0, bytes, prefix.length + line.length, SEPARATOR.length);
+            lineBytes = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Whether the frame is a message from a user rather than a line from
+     * the server.
+     */
+    boolean isMessage() {
+        return opcode == MESSAGE;
+    }
+
+    /**
+     * About the number of bytes of the payload, without encoding it.
+     */
+    int payloadSize() {
+        return payload != null ? payload.length : text.length();
+    }
+
+    /**
+     * The payload in the given charset, transcoded only if it came in
+     * another one.
+     */
+    byte[] payload(Charset wanted) {
+        if (payload == null) {
+            return text.getBytes(wanted);
+        }
+        if (charset.equals(wanted)) {
+            return payload;
+        }
+        return new String(payload, charset).getBytes(wanted);
+    }
+
+    /**
+     * Puts the opcode and the length in front of a payload.
+     */
+    static byte[] encode(byte opcode, byte[] payload) {
+        int length = payload.length;
+        int header = 2;
+        for (int rest = length >>> 7; rest != 0; rest >>>= 7) {
+            header++;
+        }
+        byte[] bytes = new byte[header + length];
+        bytes[0] = opcode;
+        int i = 1;
+        int rest = length;
+        while (rest >= 0x80) {
+            bytes[i++] = (byte) (rest | 0x80);
+            rest >>>= 7;
+        }
+        bytes[i] = (byte) rest;
+        System.arraycopy(payload, 0, bytes, header, length);
+        return bytes;
+    }
+}
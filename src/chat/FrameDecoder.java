@@ -0,0 +1,356 @@
+package chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cuts the bytes coming from one peer into protocol lines, which are
+ * handed out as the bytes they arrived in, without the line end or
+ * frame header, so that nothing is decoded that does not need to be.
+ * Until the peer has switched to the BINARY framing a line is
+ * everything up to a '\n', in the Frame.CHARSET, with an optional '\r'
+ * before it.  After the switch every unit is a frame as described in
+ * Frame: an opcode, a varint length and that many bytes of UTF-8.
+ *
+ * The decoder never reads by itself, it is handed whatever arrived and
+ * takes one unit at a time out of it, so the caller can act on a line,
+ * for example one that switches the framing, before the next one is
+ * decoded.  A unit that has not arrived in full is copied aside until
+ * the rest of it comes.  Only one thread may use a decoder at a time.
+ *
+ * A line may be no longer than the maximum it was made with, so no more
+ * than that, plus a frame header, is ever set aside.  A longer line is
+ * skipped as it arrives, without being copied anywhere, and depending
+ * on the policy is handed out cut down to the maximum, handed out as
+ * REJECTED, or fails the connection.
+ */
+final class FrameDecoder {
+
+    /**
+     * Frames are at most this long, so a varint never has more than
+     * five bytes.
+     */
+    private static final int MAX_VARINT_BYTES = 5;
+
+    /**
+     * The most the last of those bytes may be, since only three of its
+     * bits are left for a length that fits an int.
+     */
+    private static final int MAX_LAST_VARINT_BYTE = 0x07;
+
+    /**
+     * Handed out in place of a line that was longer than the maximum and
+     * has been dropped under the REJECT policy.  Compare by identity.
+     */
+    static final byte[] REJECTED = new byte[0];
+
+    /**
+     * Whether the peer sends binary frames rather than lines.
+     */
+    boolean binary;
+
+    /**
+     * The longest line accepted, not counting its line end or frame
+     * header, and what happens to longer ones.
+     */
+    private final int maxLength;
+    private final ServerConfig.OversizePolicy oversizePolicy;
+    private final ServerMetrics metrics;
+
+    /**
+     * Bytes of a unit that has not arrived in full.  Only allocated
+     * while there is such a unit, so idle peers do not hold a buffer.
+     */
+    private byte[] partial;
+    private int partialStart;
+    private int partialEnd;
+
+    /**
+     * The opcode of the unit returned last.  Lines are always Frame.LINE.
+     */
+    private byte opcode;
+
+    /**
+     * While skipping a line that is too long: how many bytes of it are
+     * still to come, or -1 if it runs to the next '\n', and the start of
+     * it that is kept when truncating.
+     */
+    private boolean skipping;
+    private long skipRemaining;
+    private byte[] kept;
+    private int keptLength;
+    private byte keptOpcode;
+
+    /**
+     * A decoder that takes lines of any length, for reading from a
+     * server that is trusted.
+     */
+    FrameDecoder() {
+        this(Integer.MAX_VALUE, ServerConfig.OversizePolicy.DISCONNECT, null);
+    }
+
+    /**
+     * A decoder that takes lines up to the given length and fails on
+     * longer ones, for reading from another server of the cluster.
+     */
+    FrameDecoder(int maxLength) {
+        this(maxLength, ServerConfig.OversizePolicy.DISCONNECT, null);
+    }
+
+    /**
+     * A decoder that enforces the configured maximum line length and
+     * counts the lines that break it.
+     */
+    FrameDecoder(ServerConfig config, ServerMetrics metrics) {
+        this(config.maxLineBytes, config.oversizePolicy, metrics);
+    }
+
+    private FrameDecoder(int maxLength, ServerConfig.OversizePolicy oversizePolicy, ServerMetrics metrics) {
+        // Leaves room for the line end or header without overflowing.
+        this.maxLength = Math.min(maxLength, Integer.MAX_VALUE - 2 * MAX_VARINT_BYTES);
+        this.oversizePolicy = oversizePolicy;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the next line out of the bytes left over from earlier
+     * calls followed by the remaining bytes of the buffer, advancing the
+     * buffer past what was used.  Returns null once the buffer is used
+     * up without completing a unit, having set aside the incomplete part.
+     */
+    byte[] next(ByteBuffer in) throws IOException {
+        if (skipping) {
+            return skip(in);
+        }
+        if (partialStart == partialEnd) {
+            byte[] unit = parse(in);
+            if (unit == null) {
+                if (skipping) {
+                    return skip(in);
+                }
+                keep(in);
+            }
+            return unit;
+        }
+        keep(in);
+        ByteBuffer pending = ByteBuffer.wrap(partial, partialStart, partialEnd - partialStart);
+        byte[] unit = parse(pending);
+        partialStart = pending.position();
+        if (partialStart == partialEnd) {
+            partial = null;
+            partialStart = 0;
+            partialEnd = 0;
+        }
+        if (unit == null && skipping) {
+            // The set aside start of the line was used up, the rest of
+            // it is still in the buffer.
+            return skip(in);
+        }
+        return unit;
+    }
+
+    /**
+     * Returns the next line from a stream, reading more into the buffer
+     * whenever it runs dry, or null at the end of the stream.  The
+     * buffer must be backed by an array and be used for nothing else.
+     */
+    byte[] read(InputStream in, ByteBuffer buffer) throws IOException {
+        while (true) {
+            byte[] unit = next(buffer);
+            if (unit != null) {
+                return unit;
+            }
+            int count = in.read(buffer.array(), 0, buffer.capacity());
+            if (count < 0) {
+                return null;
+            }
+            buffer.position(0).limit(count);
+        }
+    }
+
+    /**
+     * The opcode of the line returned last.
+     */
+    byte opcode() {
+        return opcode;
+    }
+
+    /**
+     * The charset the peer's lines are in, which depends on the framing.
+     */
+    Charset charset() {
+        return binary ? StandardCharsets.UTF_8 : Frame.CHARSET;
+    }
+
+    /**
+     * Decodes a line returned by this decoder, for the lines that are
+     * needed as text.
+     */
+    String text(byte[] line) {
+        return new String(line, charset());
+    }
+
+    /**
+     * Decodes one unit starting at the position of the buffer, and moves
+     * the position past it.  Returns null, leaving the position alone,
+     * if the unit does not end within the buffer.  A unit found to be too
+     * long is skipped from there on instead, see oversize.
+     */
+    private byte[] parse(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int end = buffer.limit();
+        if (!binary) {
+            // No need to look further than the longest line allowed.
+            int scanEnd = (int) Math.min(end, (long) start + maxLength + 2);
+            for (int i = start; i < scanEnd; i++) {
+                if (buffer.get(i) == '\n') {
+                    int lineEnd = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                    if (lineEnd - start > maxLength) {
+                        return oversize(buffer, Frame.LINE, start, -1);
+                    }
+                    byte[] line = copy(buffer, start, lineEnd);
+                    buffer.position(i + 1);
+                    opcode = Frame.LINE;
+                    return line;
+                }
+            }
+            if (end - start > maxLength + 1) {
+                return oversize(buffer, Frame.LINE, start, -1);
+            }
+            return null;
+        }
+
+        if (end - start < 2) {
+            return null;
+        }
+        byte frameOpcode = buffer.get(start);
+        if (frameOpcode != Frame.LINE && frameOpcode != Frame.MESSAGE) {
+            throw new IOException("Unknown frame opcode " + frameOpcode);
+        }
+        int length = 0;
+        int i = start + 1;
+        for (int shift = 0; ; shift += 7) {
+            if (i == end) {
+                return null;
+            }
+            byte b = buffer.get(i++);
+            if (shift == 7 * (MAX_VARINT_BYTES - 1) && (b & 0xff) > MAX_LAST_VARINT_BYTE) {
+                // Longer than an int can hold, or going on past five bytes
+                throw new IOException("Malformed frame length");
+            }
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (length > maxLength) {
+            // Known from the header alone, before any of it is buffered.
+            return oversize(buffer, frameOpcode, i, length);
+        }
+        if (end - i < length) {
+            return null;
+        }
+        byte[] line = copy(buffer, i, i + length);
+        buffer.position(i + length);
+        opcode = frameOpcode;
+        return line;
+    }
+
+    private static byte[] copy(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return bytes;
+    }
+
+    /**
+     * Deals with a unit that is too long, whose payload starts at the
+     * given index of the buffer and has the given length, or runs to the
+     * next '\n' if the length is -1.  Fails under the DISCONNECT policy,
+     * otherwise starts skipping the unit and goes on as for skip.
+     */
+    private byte[] oversize(ByteBuffer buffer, byte unitOpcode, int payloadStart, long length)
+            throws IOException {
+        if (metrics != null) {
+            metrics.oversized();
+        }
+        if (oversizePolicy == ServerConfig.OversizePolicy.DISCONNECT) {
+            throw new IOException("Line longer than " + maxLength + " bytes");
+        }
+        skipping = true;
+        skipRemaining = length;
+        keptOpcode = unitOpcode;
+        kept = oversizePolicy == ServerConfig.OversizePolicy.TRUNCATE ? new byte[maxLength] : null;
+        keptLength = 0;
+        buffer.position(payloadStart);
+        return skip(buffer);
+    }
+
+    /**
+     * Moves the buffer past as much of the unit being skipped as it
+     * holds, keeping its start if truncating.  Returns null if the unit
+     * goes on beyond the buffer, and otherwise what is handed out for it:
+     * the kept start, or REJECTED.
+     */
+    private byte[] skip(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = buffer.limit();
+        int stop;
+        boolean done;
+        if (skipRemaining < 0) {
+            stop = start;
+            while (stop < end && buffer.get(stop) != '\n') {
+                stop++;
+            }
+            done = stop < end;
+        } else {
+            stop = (int) Math.min(end, start + skipRemaining);
+            skipRemaining -= stop - start;
+            done = skipRemaining == 0;
+        }
+        if (kept != null && keptLength < kept.length) {
+            int count = Math.min(stop - start, kept.length - keptLength);
+            buffer.get(start, kept, keptLength, count);
+            keptLength += count;
+        }
+        buffer.position(done && skipRemaining < 0 ? stop + 1 : stop);
+        if (!done) {
+            return null;
+        }
+        skipping = false;
+        opcode = keptOpcode;
+        byte[] unit = kept == null ? REJECTED : kept;
+        kept = null;
+        return unit;
+    }
+
+    /**
+     * Sets aside the remaining bytes of the buffer, after anything set
+     * aside before, and moves the buffer past them.  No more is set aside
+     * than a unit of the maximum length can take up, which is always
+     * enough to either complete a unit or tell that it is too long.
+     */
+    private void keep(ByteBuffer in) {
+        int limit = maxLength + MAX_VARINT_BYTES + 2;
+        int pending = partialEnd - partialStart;
+        int count = Math.min(in.remaining(), limit - pending);
+        if (count == 0) {
+            return;
+        }
+        if (partial == null) {
+            partial = new byte[Math.max(count, Math.min(256, limit))];
+        } else if (partialEnd + count > partial.length) {
+            byte[] larger = pending + count > partial.length
+                    ? new byte[(int) Math.min(Math.max(pending + count, 2L * partial.length), limit)]
+                    : partial;
+            System.arraycopy(partial, partialStart, larger, 0, pending);
+            partial = larger;
+            partialStart = 0;
+            partialEnd = pending;
+        }
+        in.get(partial, partialEnd, count);
+        partialEnd += count;
+    }
+}
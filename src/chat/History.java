@@ -0,0 +1,487 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers the HISTORY requests of clients out of the MessageJournal, so
+ * a client that reconnects can catch up on what it missed.
+ *
+ *     HISTORY SINCE 1234 [#channel]  everything after message 1234
+ *     HISTORY LAST 50 [#channel]     the 50 newest messages
+ *
+ * Each message the client may see comes back as "HISTORY 1235 Nimal: hi",
+ * with its sequence number and the text it was delivered as, oldest
+ * first.  Clients only see what was sent to everybody, to a channel they
+ * are in at the time they ask, or to them.  At the end comes
+ * "HISTORY_END 1300", the newest sequence number there was when the
+ * request came in, which is where to ask SINCE from next time.  An
+ * answer that would be longer than historyMax messages stops early with
+ * "HISTORY_MORE 1280", and the client asks again SINCE 1280 for the rest.
+ * Should the journal be broken or unreadable from some message on, the
+ * answer stops with "HISTORY_FAILED 1290", the first one that could not
+ * be read.
+ *
+ * The newest messages are read from the MessageRing of each room and
+ * older ones from the journal files.  LAST goes back through the rings
+ * first, and on through the journal files, a segment at a time, if they
+ * do not hold enough, in slices the same as the replay itself.
+ *
+ * A replay may be thousands of lines, so it never runs on the thread
+ * reading from the client and never takes more than half of the
+ * client's outbound queue.  Replays are run by a single thread, a slice
+ * at a time, and one that finds its client's queue more than half full
+ * waits and tries again, which leaves the room for live messages.
+ */
+final class History {
+
+    /**
+     * The most records one slice of a replay looks at before letting the
+     * other replays have a turn.
+     */
+    private static final int RECORDS_PER_SLICE = 512;
+
+    /**
+     * How long a replay waits for its client to read before trying again.
+     */
+    private static final long BACKOFF_MILLIS = 10;
+
+    private final MessageJournal journal;
+    private final int max;
+
+    /**
+     * How much of an outbound queue a replay leaves free.
+     */
+    private final int headroom;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "chat-history");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    History(MessageJournal journal, ServerConfig config) {
+        this.journal = journal;
+        this.max = Math.max(1, config.historyMax);
+        this.headroom = config.outboundQueueSize / 2;
+    }
+
+    /**
+     * Starts answering a "HISTORY ..." line from a named session, or
+     * answers "HISTORY_INVALID" if it is not a request that makes sense.
+     * Called by the thread reading from the client.
+     */
+    void request(Session session, String command) {
+        String[] words = command.split(" ");
+        long number;
+        try {
+            number = words.length == 3 || words.length == 4 ? Long.parseLong(words[2]) : -1;
+        } catch (NumberFormatException e) {
+            number = -1;
+        }
+        String channel = words.length == 4 ? words[3] : null;
+        boolean since = words.length > 1 && words[1].equals("SINCE");
+        boolean last = words.length > 1 && words[1].equals("LAST");
+        if (number < 0 || !(since || last) || (channel != null && !Channel.isValidName(channel))) {
+            session.send("HISTORY_INVALID");
+            return;
+        }
+        // The channels are only ever looked at by this thread, so the
+        // replay gets them as they are now
+        Set<String> channels = new HashSet<>(session.channels());
+        List<String> rooms = new ArrayList<>();
+        if (channel == null) {
+            rooms.add("ALL");
+            rooms.add(MessageJournal.DIRECT);
+            rooms.addAll(channels);
+        } else if (channels.contains(channel)) {
+            rooms.add(channel);
+        }
+        executor.execute(new Replay(session, channel, channels, rooms,
+                since ? number + 1 : 0, last ? number : 0, journal.lastSequence()));
+    }
+
+    /**
+     * One client's replay, which puts itself back on the executor until
+     * it is done.  It reads from disk until it gets to what the rooms it
+     * is about all hold in memory, and from then on merges their rings
+     * by sequence number.  Should a ring drop what it was about to read,
+     * it goes back to the disk from there.
+     */
+    private final class Replay implements Runnable {
+        private final Session session;
+        private final String channel;
+        private final Set<String> channels;
+        private final List<String> rooms;
+        private final long wanted;
+        private final long end;
+
+        /**
+         * The sequence number of the next record to look at.  Until it is
+         * worked out for a LAST request it is 0.
+         */
+        private long next;
+
+        /**
+         * Either the cursor while reading from disk, or the rings and the
+         * position in each while reading from memory, or neither.
+         */
+        private MessageJournal.Cursor cursor;
+        private MessageRing[] rings;
+        private long[] positions;
+
+        /**
+         * Working out where a LAST request starts, while it is.
+         */
+        private Search search;
+
+        private int sent;
+
+        Replay(Session session, String channel, Set<String> channels, List<String> rooms,
+               long next, long wanted, long end) {
+            this.session = session;
+            this.channel = channel;
+            this.channels = channels;
+            this.rooms = rooms;
+            this.next = next;
+            this.wanted = wanted;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (slice()) {
+                    executor.execute(this);
+                }
+            } catch (IOException e) {
+                // What could be read has been sent, and the client is told
+                // where it stopped rather than that it got everything
+                System.out.println("A history replay failed: " + e.getMessage());
+                session.send("HISTORY_FAILED " + next);
+            }
+        }
+
+        /**
+         * Sends the next part of the replay.  Returns whether there is
+         * more to send straight away.
+         */
+        private boolean slice() throws IOException {
+            if (session.closed) {
+                return false;
+            }
+            if (next == 0) {
+                if (search == null) {
+                    search = new Search(Math.min(wanted, max));
+                }
+                if (!search.step()) {
+                    return true;
+                }
+                next = search.start;
+                search = null;
+            }
+            for (int i = 0; i < RECORDS_PER_SLICE; i++) {
+                if (session.outbound.remainingCapacity() <= headroom) {
+                    executor.schedule(this, BACKOFF_MILLIS, TimeUnit.MILLISECONDS);
+                    return false;
+                }
+                MessageJournal.Record record = nextRecord();
+                if (record == null || record.sequence > end) {
+                    session.send("HISTORY_END " + end);
+                    return false;
+                }
+                if (visible(record)) {
+                    session.send("HISTORY " + record.sequence + " "
+                            + new String(record.payload, StandardCharsets.UTF_8));
+                    if (++sent == max && record.sequence < end) {
+                        session.send("HISTORY_MORE " + record.sequence);
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * The next record of the rooms, from memory if they all hold it
+         * there, or else from disk.  Returns null if there is none.
+         */
+        private MessageJournal.Record nextRecord() throws IOException {
+            if (cursor == null && rings == null && (next < completeFrom() || !openRings())) {
+                cursor = journal.cursor(next);
+            }
+            if (cursor != null) {
+                MessageJournal.Record record = cursor.next();
+                if (record != null) {
+                    next = record.sequence + 1;
+                    if (next >= completeFrom()) {
+                        cursor = null;
+                    }
+                }
+                return record;
+            }
+            int oldest = -1;
+            long oldestSequence = Long.MAX_VALUE;
+            for (int i = 0; i < rings.length; i++) {
+                if (rings[i].completeFrom() > next) {
+                    // Dropped or given up before we got to it
+                    return fallBehind();
+                }
+                if (positions[i] < rings[i].head()) {
+                    long sequence = rings[i].sequence(positions[i]);
+                    if (sequence < 0) {
+                        return fallBehind();
+                    }
+                    if (sequence < oldestSequence) {
+                        oldest = i;
+                        oldestSequence = sequence;
+                    }
+                }
+            }
+            if (oldest < 0) {
+                return null;
+            }
+            MessageJournal.Record record = rings[oldest].read(positions[oldest]);
+            if (record == null) {
+                return fallBehind();
+            }
+            positions[oldest]++;
+            next = record.sequence + 1;
+            return record;
+        }
+
+        /**
+         * Starts reading the rings at the next sequence number.  Returns
+         * false if one of them has meanwhile dropped what that needs.
+         */
+        private boolean openRings() {
+            rings = rings();
+            positions = new long[rings.length];
+            for (int i = 0; i < rings.length; i++) {
+                positions[i] = rings[i].find(next);
+                if (rings[i].completeFrom() > next) {
+                    rings = null;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * The rings of the rooms that have had messages.
+         */
+        private MessageRing[] rings() {
+            List<MessageRing> found = new ArrayList<>();
+            for (String room : rooms) {
+                MessageRing ring = journal.ring(room);
+                if (ring != null) {
+                    found.add(ring);
+                }
+            }
+            return found.toArray(new MessageRing[0]);
+        }
+
+        private MessageJournal.Record fallBehind() throws IOException {
+            rings = null;
+            cursor = journal.cursor(next);
+            return nextRecord();
+        }
+
+        /**
+         * The sequence number from which on every room holds everything
+         * in memory.
+         */
+        private long completeFrom() {
+            long from = 0;
+            for (String room : rooms) {
+                from = Math.max(from, journal.completeFrom(room));
+            }
+            return from;
+        }
+
+        /**
+         * Works out the sequence number to start from to get the given
+         * number of the newest messages the client may see.  It goes back
+         * through the rings, newest first, as far as they hold everything,
+         * and then through the journal files.  The journal is only read
+         * forward, so the segments are read one after the other from the
+         * newest back, keeping the newest visible records of each, until
+         * enough are found.  Like the replay itself it looks at no more
+         * than RECORDS_PER_SLICE records at a time.
+         */
+        private final class Search {
+
+            /**
+             * How many visible messages are still to be found, and the
+             * oldest found so far, or where to start if there are none.
+             */
+            private long count;
+            private long start = end + 1;
+
+            /**
+             * Everything from here on that the client may see has been
+             * found.
+             */
+            private long before = end + 1;
+
+            /**
+             * The rings and the position in each, going backwards, until
+             * the rings have nothing more to give.
+             */
+            private MessageRing[] rings;
+            private long[] backwards;
+
+            /**
+             * The segment being read, and its newest visible records
+             * before the ones already looked at.
+             */
+            private long segment;
+            private MessageJournal.Cursor cursor;
+            private final ArrayDeque<Long> newest = new ArrayDeque<>();
+            private boolean done;
+
+            Search(long count) {
+                this.count = count;
+                rings = rings();
+                backwards = new long[rings.length];
+                for (int i = 0; i < rings.length; i++) {
+                    backwards[i] = rings[i].head() - 1;
+                }
+            }
+
+            /**
+             * Looks at the next few records.  Returns true once start is
+             * where the replay starts.
+             */
+            boolean step() throws IOException {
+                for (int i = 0; i < RECORDS_PER_SLICE && count > 0 && !done; i++) {
+                    if (rings != null) {
+                        fromRings();
+                    } else {
+                        fromDisk();
+                    }
+                }
+                return count == 0 || done;
+            }
+
+            /**
+             * Looks at the newest record of the rings not looked at yet.
+             * What the rings hold is worked out again every time, since
+             * they may have dropped some of it since the last slice.
+             */
+            private void fromRings() {
+                long complete = completeFrom();
+                int newestRing = -1;
+                long newestSequence = -1;
+                for (int i = 0; i < rings.length; i++) {
+                    long sequence = sequence(i);
+                    while (sequence >= before) {
+                        backwards[i]--;
+                        sequence = sequence(i);
+                    }
+                    if (sequence < complete) {
+                        // Older than what every ring holds, so the disk has to be asked
+                        sequence = -1;
+                    }
+                    if (sequence > newestSequence) {
+                        newestRing = i;
+                        newestSequence = sequence;
+                    }
+                }
+                if (newestRing < 0) {
+                    rings = null;
+                    before = Math.min(before, complete);
+                    return;
+                }
+                MessageJournal.Record record = rings[newestRing].read(backwards[newestRing]);
+                if (record == null) {
+                    // Dropped just now, which the next look takes into account
+                    return;
+                }
+                backwards[newestRing]--;
+                before = record.sequence;
+                if (visible(record)) {
+                    count--;
+                    start = record.sequence;
+                }
+            }
+
+            private long sequence(int ring) {
+                return backwards[ring] >= rings[ring].tail() ? rings[ring].sequence(backwards[ring]) : -1;
+            }
+
+            /**
+             * Looks at the next record of the segment being read, going on
+             * to the one before it once it has all been read.
+             */
+            private void fromDisk() throws IOException {
+                if (cursor == null) {
+                    segment = before > 1 ? journal.segmentStart(before - 1) : -1;
+                    if (segment < 0) {
+                        done = true;
+                        return;
+                    }
+                    cursor = journal.cursor(segment);
+                }
+                MessageJournal.Record record = cursor.next();
+                if (record != null && record.sequence < before) {
+                    if (visible(record)) {
+                        newest.addLast(record.sequence);
+                        if (newest.size() > count) {
+                            newest.removeFirst();
+                        }
+                    }
+                    return;
+                }
+                if (!newest.isEmpty()) {
+                    start = newest.getFirst();
+                    count -= newest.size();
+                    newest.clear();
+                }
+                cursor = null;
+                before = segment;
+            }
+        }
+
+        /**
+         * Whether the client may see the record, and asked for it.
+         */
+        private boolean visible(MessageJournal.Record record) {
+            String audience = record.audience;
+            if (channel != null) {
+                return audience.equals(channel) && channels.contains(channel);
+            }
+            if (audience.equals("ALL")) {
+                return true;
+            }
+            if (audience.charAt(0) == '#') {
+                return channels.contains(audience);
+            }
+            return record.sender.equals(session.name) || isListed(audience, session.name);
+        }
+    }
+
+    /**
+     * Whether the name is one of those in the comma separated list.
+     */
+    private static boolean isListed(String names, String name) {
+        int at = names.indexOf(name);
+        while (at >= 0) {
+            int after = at + name.length();
+            if ((at == 0 || names.charAt(at - 1) == ',')
+                    && (after == names.length() || names.charAt(after) == ',')) {
+                return true;
+            }
+            at = names.indexOf(name, at + 1);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,105 @@
+package chat;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps track of when the clients that asked for HEARTBEAT were last
+ * heard from, so that one which has gone quiet is sent a "PING" and
+ * one which stays quiet, like the far end of a half-open connection,
+ * is dropped.
+ *
+ * This is a hashed timing wheel turned once a second: a ring of slots,
+ * each holding the sessions that are due in that second.  Hearing from
+ * a client only records the current tick in its session and moves
+ * nothing.  A session is looked at again when its slot comes round,
+ * and is then put back in whatever slot its last activity makes it due
+ * in, pinged, or dropped.  So each tick costs the number of sessions
+ * that are due, however many are tracked.  Deadlines further away than
+ * the ring is long wait in the furthest slot and are put back from there.
+ */
+final class IdleWheel {
+
+    private final ConcurrentLinkedQueue<Session>[] slots;
+    private final int mask;
+
+    /**
+     * How many quiet ticks earn a client a "PING", and how many get it
+     * dropped.  A client is never pinged if the first is not less than
+     * the second.
+     */
+    private final long pingTicks;
+    private final long timeoutTicks;
+
+    /**
+     * The number of times the wheel has turned.  Only advance writes it.
+     */
+    private volatile long tick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    IdleWheel(long pingSeconds, long timeoutSeconds) {
+        int size = Integer.highestOneBit((int) Math.min(timeoutSeconds, 1 << 16)) << 1;
+        this.slots = new ConcurrentLinkedQueue[Math.max(size, 16)];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.mask = slots.length - 1;
+        this.pingTicks = pingSeconds > 0 && pingSeconds < timeoutSeconds ? pingSeconds : timeoutSeconds;
+        this.timeoutTicks = timeoutSeconds;
+    }
+
+    /**
+     * Starts keeping an eye on a session, as if it had just been heard from.
+     */
+    void track(Session session) {
+        long now = tick;
+        session.heardTick = now;
+        schedule(session, now, now + pingTicks);
+    }
+
+    /**
+     * Notes that something arrived from the client.  Called for every
+     * line, so it only writes when the tick has moved on.
+     */
+    void heard(Session session) {
+        long now = tick;
+        if (session.heardTick != now) {
+            session.heardTick = now;
+        }
+    }
+
+    /**
+     * Turns the wheel by one tick and deals with the sessions due.  Must
+     * only be called from one thread, once a second.
+     */
+    void advance() {
+        long now = tick + 1;
+        tick = now;
+        ConcurrentLinkedQueue<Session> slot = slots[(int) (now & mask)];
+        // Sessions are only ever put back into later slots, so this ends.
+        Session session;
+        while ((session = slot.poll()) != null) {
+            if (session.closed) {
+                continue;
+            }
+            long heard = session.heardTick;
+            long quiet = now - heard;
+            if (quiet >= timeoutTicks) {
+                session.metrics.idleDisconnected();
+                session.disconnect();
+            } else if (quiet >= pingTicks) {
+                if (session.pingedTick <= heard) {
+                    session.pingedTick = now;
+                    session.send("PING " + now);
+                }
+                schedule(session, now, heard + timeoutTicks);
+            } else {
+                schedule(session, now, heard + pingTicks);
+            }
+        }
+    }
+
+    private void schedule(Session session, long now, long due) {
+        long delay = Math.max(1, Math.min(due - now, mask));
+        slots[(int) ((now + delay) & mask)].add(session);
+    }
+}
@@ -0,0 +1,131 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages to names nobody has at the moment, kept until somebody takes
+ * the name.  Each name gets one mailbox holding at most mailboxSize
+ * messages in at most mailboxBytes, at most mailboxUsers names get one,
+ * and all of them together hold at most mailboxTotalBytes, so senders
+ * cannot make the server hold on to any amount they like.  Once a
+ * mailbox is full further messages are refused rather than older ones
+ * lost, and the sender is told.
+ *
+ * A mailbox is one byte array with the messages in it, each as its
+ * length and its UTF-8 bytes, so a waiting message costs its text and
+ * four bytes rather than an object or two.  Every mailbox is only
+ * changed under the lock of its own map entry, so storing for one name
+ * never waits for another.
+ *
+ * The mailboxes are only kept in memory, so they do not survive a
+ * restart of the server.  The MessageJournal keeps what was routed but
+ * not what was delivered, so it cannot tell which of its messages would
+ * still be waiting.
+ */
+final class Mailboxes {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final int mailboxSize;
+    private final int mailboxUsers;
+    private final int mailboxBytes;
+    private final long mailboxTotalBytes;
+
+    /**
+     * The bytes all mailboxes together hold.
+     */
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    Mailboxes(ServerConfig config) {
+        this.mailboxSize = config.mailboxSize;
+        this.mailboxUsers = config.mailboxUsers;
+        this.mailboxBytes = config.mailboxBytes;
+        this.mailboxTotalBytes = config.mailboxTotalBytes;
+    }
+
+    /**
+     * Puts a message in the name's mailbox.  Returns false if the
+     * mailbox is full, if all the mailboxes together are, or if the
+     * mailbox would have to be made and there are as many as allowed
+     * already.
+     */
+    boolean store(String name, byte[] message) {
+        int bytes = 4 + message.length;
+        boolean[] stored = new boolean[1];
+        mailboxes.compute(name, (key, mailbox) -> {
+            if (mailbox == null) {
+                if (mailboxes.mappingCount() >= mailboxUsers) {
+                    return null;
+                }
+                mailbox = new Mailbox();
+            }
+            if (mailbox.count < mailboxSize && mailbox.size + bytes <= mailboxBytes) {
+                if (totalBytes.addAndGet(bytes) <= mailboxTotalBytes) {
+                    mailbox.add(message);
+                    stored[0] = true;
+                } else {
+                    totalBytes.addAndGet(-bytes);
+                }
+            }
+            return mailbox.count > 0 ? mailbox : null;
+        });
+        return stored[0];
+    }
+
+    /**
+     * Empties the name's mailbox and returns what was in it, or null if
+     * there was nothing.
+     */
+    Mailbox take(String name) {
+        Mailbox mailbox = mailboxes.remove(name);
+        if (mailbox != null) {
+            totalBytes.addAndGet(-mailbox.size);
+        }
+        return mailbox;
+    }
+
+    /**
+     * The messages waiting for one name.
+     */
+    static final class Mailbox {
+        private byte[] bytes = new byte[INITIAL_CAPACITY];
+        private int size;
+        private int count;
+
+        private void add(byte[] message) {
+            if (size + 4 + message.length > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, size + 4 + message.length)];
+                System.arraycopy(bytes, 0, grown, 0, size);
+                bytes = grown;
+            }
+            bytes[size] = (byte) (message.length >>> 24);
+            bytes[size + 1] = (byte) (message.length >>> 16);
+            bytes[size + 2] = (byte) (message.length >>> 8);
+            bytes[size + 3] = (byte) message.length;
+            System.arraycopy(message, 0, bytes, size + 4, message.length);
+            size += 4 + message.length;
+            count++;
+        }
+
+        int count() {
+            return count;
+        }
+
+        /**
+         * Makes a MESSAGE frame of each message, oldest first, and sends
+         * it to the session.
+         */
+        void deliver(Session session) {
+            int at = 0;
+            while (at < size) {
+                int length = (bytes[at] & 0xff) << 24 | (bytes[at + 1] & 0xff) << 16
+                        | (bytes[at + 2] & 0xff) << 8 | (bytes[at + 3] & 0xff);
+                session.send(Frame.message("", bytes, at + 4, at + 4 + length, StandardCharsets.UTF_8));
+                at += 4 + length;
+            }
+        }
+    }
+}
@@ -0,0 +1,624 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only log of every message the room routes, so that what was
+ * said outlives the connections it was said on.
+ *
+ * Routing only ever hands a message to the journal's queue and goes on.
+ * A single journal thread takes everything that has piled up, gives each
+ * message the next sequence number, writes the lot with one write and
+ * forces it to disk with one force: a group commit, so the number of
+ * forces follows the disk rather than the message rate, and no thread
+ * that reads from a client ever waits for the disk.  If the disk falls so
+ * far behind that the queue fills up, messages are left out of the
+ * journal rather than held up, and counted.  The queue is bounded by
+ * the bytes of the messages in it as well as by their number, so a
+ * slow disk cannot pin more than a few megabytes of them.
+ *
+ * The log is a directory of segment files, each named after the first
+ * sequence number in it, like "00000000000000000001.log".  A segment is
+ * rolled once it reaches the configured size.  Every record is
+ *
+ *     length    int, the number of bytes that follow, bar the checksum
+ *     sequence  long
+ *     time      long, in milliseconds since the epoch
+ *     sender    int length and UTF-8 bytes
+ *     audience  int length and UTF-8 bytes: "ALL", a "#channel", or the
+ *               names of the recipients separated by ","
+ *     payload   int length and UTF-8 bytes, the message as delivered,
+ *               like "Nimal: hi"
+ *     checksum  int, the CRC32C of everything from sequence on
+ *
+ * On opening, the newest segment is read through, and anything after the
+ * last whole record, left by a crash halfway through a write, is cut off.
+ * Numbering carries on from there.
+ *
+ * The newest records of each room are also kept in memory, as they were
+ * encoded, in a MessageRing per room, so that replaying recent history
+ * does not touch the disk.  The rooms are "ALL", every channel, and one
+ * for all messages to lists of names.  All the rings together take up at
+ * most historyTotalBytes of direct memory: a ring that needs more takes
+ * it from the rings written to longest ago, which are given up, and the
+ * ring of a channel that is no more is given up too.  A room without a
+ * ring has its history read from disk.  A Cursor reads the segments,
+ * mapped into memory, forward from any sequence number, and reports a
+ * record that fails its checksum rather than taking it for the end.
+ */
+final class MessageJournal {
+
+    /**
+     * The most messages waiting for the journal thread.
+     */
+    private static final int QUEUE_CAPACITY = 65536;
+
+    /**
+     * The most bytes of messages waiting for the journal thread.
+     */
+    private static final long QUEUE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The size of the buffer a batch is written from, which is also the
+     * most that goes to the file in one write.
+     */
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * What fits in a record header: the length, sequence, time and the
+     * three field lengths, and the checksum after it.
+     */
+    private static final int RECORD_OVERHEAD = 4 + 8 + 8 + 4 + 4 + 4 + 4;
+
+    private static final String SUFFIX = ".log";
+
+    /**
+     * The room messages to lists of names are kept in.
+     */
+    static final String DIRECT = "DIRECT";
+
+    /**
+     * A message as the journal keeps it.
+     */
+    static final class Record {
+        final long sequence;
+        final long timeMillis;
+        final String sender;
+        final String audience;
+        final byte[] payload;
+
+        Record(long sequence, long timeMillis, String sender, String audience, byte[] payload) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.sender = sender;
+            this.audience = audience;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * A message waiting to be written.  The payload is only made UTF-8 by
+     * the journal thread, if the message came in another charset.
+     */
+    private static final class Pending {
+        final String sender;
+        final String audience;
+        final Frame message;
+        final int size;
+
+        Pending(String sender, String audience, Frame message, int size) {
+            this.sender = sender;
+            this.audience = audience;
+            this.message = message;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Queued by close, after which the journal thread writes what came
+     * before it and stops.
+     */
+    private static final Pending CLOSE = new Pending(null, null, null, 0);
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final boolean fsync;
+    private final ServerMetrics metrics;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final CRC32C crc = new CRC32C();
+
+    /**
+     * Only touched by the journal thread once it runs.
+     */
+    private FileChannel segment;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private long segmentSize;
+
+    /**
+     * The segment files by the first sequence number in each, so cursors
+     * need not list the directory.  Only added to, by the journal thread.
+     */
+    private final ConcurrentSkipListMap<Long, Path> segmentFiles = new ConcurrentSkipListMap<>();
+
+    /**
+     * The newest records of each room that has had any since the journal
+     * was opened, bar the rooms whose rings were given up.  Rings are only
+     * added, written to and given up by the journal thread.
+     */
+    private final ConcurrentHashMap<String, MessageRing> rooms = new ConcurrentHashMap<>();
+    private final int roomSlots;
+    private final int roomBytes;
+    private final long totalRoomBytes;
+
+    /**
+     * The bytes all the rings take up.  Only used by the journal thread.
+     */
+    private long ringBytes;
+
+    /**
+     * The newest sequence number a ring that was given up, or never made,
+     * may have been missing.  A room without a ring holds everything in
+     * memory from after it on, which is nothing.
+     */
+    private volatile long lostThrough;
+
+    /**
+     * The channels that are no more, whose rings the journal thread is to
+     * give up.
+     */
+    private final ConcurrentLinkedQueue<String> droppedRooms = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The first sequence number given out since the journal was opened.
+     * Rings hold everything of their room from there on until they drop
+     * something.
+     */
+    private final long firstNewSequence;
+
+    /**
+     * The sequence number of the newest message written.
+     */
+    private volatile long lastSequence;
+
+    private Thread thread;
+
+    /**
+     * Opens the journal in the given directory, creating it if needed,
+     * and recovers the end of the newest segment.
+     */
+    MessageJournal(ServerConfig config, ServerMetrics metrics) throws IOException {
+        this.directory = Path.of(config.journalDirectory);
+        this.segmentBytes = config.journalSegmentBytes;
+        this.fsync = config.journalFsync;
+        this.metrics = metrics;
+        this.roomSlots = config.historySize;
+        this.roomBytes = config.historyRoomBytes;
+        this.totalRoomBytes = config.historyTotalBytes;
+        Files.createDirectories(directory);
+        List<Path> segments = segments();
+        for (Path file : segments) {
+            segmentFiles.put(firstSequence(file), file);
+        }
+        if (segments.isEmpty()) {
+            openSegment(1);
+        } else {
+            recover(segments.get(segments.size() - 1));
+        }
+        this.firstNewSequence = lastSequence + 1;
+    }
+
+    /**
+     * Starts the journal thread.
+     */
+    void start() {
+        thread = new Thread(this::run, "chat-journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Hands a routed message to the journal.  Never blocks: if the
+     * journal cannot keep up the message is counted and left out.
+     */
+    void append(String sender, String audience, Frame message) {
+        // Near enough for a bound; the exact record size is only known
+        // once the journal thread has made the payload UTF-8
+        int size = RECORD_OVERHEAD + sender.length() + audience.length() + message.payloadSize();
+        if (queuedBytes.addAndGet(size) > QUEUE_BYTES
+                || !queue.offer(new Pending(sender, audience, message, size))) {
+            queuedBytes.addAndGet(-size);
+            metrics.journalDropped();
+        }
+    }
+
+    /**
+     * The sequence number of the newest message written so far.
+     */
+    long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * The room a message to the audience is kept in.
+     */
+    static String room(String audience) {
+        return audience.equals("ALL") || audience.charAt(0) == '#' ? audience : DIRECT;
+    }
+
+    /**
+     * The ring holding the newest messages of the room, or null if the
+     * room has had none since the journal was opened.
+     */
+    MessageRing ring(String room) {
+        return rooms.get(room);
+    }
+
+    /**
+     * The sequence number from which on every message of the room is in
+     * memory.  Anything before it has to be read from disk.
+     */
+    long completeFrom(String room) {
+        if (roomSlots <= 0 || roomBytes <= 0) {
+            return Long.MAX_VALUE;
+        }
+        MessageRing ring = rooms.get(room);
+        return ring != null ? ring.completeFrom() : Math.max(firstNewSequence, lostThrough + 1);
+    }
+
+    /**
+     * Gives up the ring of a channel that has been removed.  A channel
+     * made again under the name gets a new one.
+     */
+    void dropRoom(String room) {
+        droppedRooms.add(room);
+    }
+
+    /**
+     * The first sequence number of the segment that holds the given one,
+     * or -1 if no segment does.
+     */
+    long segmentStart(long sequence) {
+        Long first = segmentFiles.floorKey(sequence);
+        return first != null ? first : -1;
+    }
+
+    /**
+     * Returns a cursor that starts at the given sequence number.
+     */
+    Cursor cursor(long sequence) {
+        return new Cursor(Math.max(1, sequence));
+    }
+
+    /**
+     * Reads the journal files forward, one record at a time.  Only meant
+     * for one thread at a time.
+     */
+    final class Cursor {
+        private long next;
+
+        /**
+         * The segment being read, mapped, with the position at the next
+         * record to read.
+         */
+        private Path file;
+        private ByteBuffer bytes;
+
+        private Cursor(long next) {
+            this.next = next;
+        }
+
+        /**
+         * Returns the next record written, or null if there is none yet.
+         * Throws an IOException if the record is there but broken.
+         */
+        Record next() throws IOException {
+            if (next > lastSequence) {
+                return null;
+            }
+            Record record = fromDisk();
+            if (record != null) {
+                next = record.sequence + 1;
+            }
+            return record;
+        }
+
+        /**
+         * Reads on through the mapped segment until the record wanted, and
+         * maps the segment it should be in if it is not in this one.  The
+         * newest segment may have grown since it was mapped, so it may be
+         * mapped again, carrying on from where the last mapping ended, but
+         * only once per record.  The record wanted has been written by
+         * now, so if it still cannot be read it is broken.
+         */
+        private Record fromDisk() throws IOException {
+            for (int attempt = 0; ; attempt++) {
+                if (bytes != null) {
+                    Record record;
+                    while ((record = read(bytes)) != null) {
+                        if (record.sequence >= next) {
+                            return record;
+                        }
+                    }
+                    if (attempt == 2) {
+                        throw new IOException("The journal record " + next + " in " + file
+                                + " at byte " + bytes.position() + " is broken");
+                    }
+                }
+                Map.Entry<Long, Path> segment = segmentFiles.floorEntry(next);
+                if (segment == null) {
+                    return null;
+                }
+                int position = segment.getValue().equals(file) ? bytes.position() : 0;
+                file = segment.getValue();
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                bytes.position(Math.min(position, bytes.limit()));
+            }
+        }
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Writes out whatever is still queued, forces it to disk and stops
+     * the journal thread.  The thread is not interrupted, since that
+     * would close the file under it.
+     */
+    void close() throws InterruptedException {
+        if (thread != null && thread.isAlive()) {
+            queue.put(CLOSE);
+            thread.join();
+        }
+    }
+
+    /**
+     * The segment files, oldest first.
+     */
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>();
+        try {
+            boolean closing = false;
+            while (!closing) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                for (Pending pending : batch) {
+                    queuedBytes.addAndGet(-pending.size);
+                }
+                closing = batch.remove(CLOSE);
+                write(batch);
+                batch.clear();
+            }
+            segment.close();
+        } catch (InterruptedException e) {
+            // Nobody interrupts the journal thread.
+        } catch (IOException e) {
+            // Without a journal the chat goes on, but nothing more is kept.
+            System.out.println("The message journal failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a batch and forces it to disk once.
+     */
+    private void write(List<Pending> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        String dropped;
+        while ((dropped = droppedRooms.poll()) != null) {
+            giveUp(dropped);
+        }
+        long sequence = lastSequence;
+        long now = System.currentTimeMillis();
+        for (Pending pending : batch) {
+            byte[] sender = pending.sender.getBytes(StandardCharsets.UTF_8);
+            byte[] audience = pending.audience.getBytes(StandardCharsets.UTF_8);
+            byte[] payload = pending.message.payload(StandardCharsets.UTF_8);
+            int size = RECORD_OVERHEAD + sender.length + audience.length + payload.length;
+            if (segmentSize + buffer.position() + size > segmentBytes && segmentSize + buffer.position() > 0) {
+                flush();
+                segment.close();
+                openSegment(sequence + 1);
+            }
+            if (buffer.remaining() < size) {
+                flush();
+                if (buffer.capacity() < size) {
+                    buffer = ByteBuffer.allocateDirect(size);
+                }
+            }
+            sequence++;
+            int start = buffer.position();
+            buffer.putInt(size - 8);
+            buffer.putLong(sequence);
+            buffer.putLong(now);
+            buffer.putInt(sender.length).put(sender);
+            buffer.putInt(audience.length).put(audience);
+            buffer.putInt(payload.length).put(payload);
+            crc.reset();
+            crc.update(buffer.duplicate().position(start + 4).limit(buffer.position()));
+            buffer.putInt((int) crc.getValue());
+            if (roomSlots > 0 && roomBytes > 0) {
+                keep(room(pending.audience), sequence, buffer.duplicate().position(start).limit(buffer.position()));
+            }
+        }
+        flush();
+        if (fsync) {
+            long start = System.nanoTime();
+            segment.force(false);
+            metrics.journalSynced(start);
+        }
+        lastSequence = sequence;
+        metrics.journaled(batch.size());
+    }
+
+    /**
+     * Adds an encoded record to the ring of its room, making the ring or
+     * growing it if the rings together may take up the bytes.
+     */
+    private void keep(String room, long sequence, ByteBuffer record) {
+        try {
+            MessageRing ring = rooms.get(room);
+            if (ring == null) {
+                ring = new MessageRing(roomSlots, roomBytes, Math.max(firstNewSequence, lostThrough + 1));
+                if (!makeRoom(ring.size(), null)) {
+                    lostThrough = sequence;
+                    return;
+                }
+                rooms.put(room, ring);
+                ringBytes += ring.size();
+            }
+            long size = ring.size();
+            long grown = ring.sizeToHold(record.remaining());
+            if (grown > size && makeRoom(grown - size, ring)) {
+                ring.grow(record.remaining());
+                ringBytes += ring.size() - size;
+            }
+            ring.add(sequence, record);
+        } catch (OutOfMemoryError e) {
+            // Out of direct memory after all; the room is left to the disk
+            // rather than the journal stopping
+            giveUp(room);
+            lostThrough = sequence;
+        }
+    }
+
+    /**
+     * Makes room for the bytes under historyTotalBytes, giving up the
+     * rings other than the given one that were written to longest ago.
+     * Returns false, giving up nothing, if there cannot be room.
+     */
+    private boolean makeRoom(long bytes, MessageRing keeping) {
+        if (bytes > totalRoomBytes - (keeping != null ? keeping.size() : 0)) {
+            return false;
+        }
+        while (ringBytes + bytes > totalRoomBytes) {
+            String oldest = null;
+            long oldestSequence = Long.MAX_VALUE;
+            for (Map.Entry<String, MessageRing> entry : rooms.entrySet()) {
+                MessageRing ring = entry.getValue();
+                if (ring != keeping && ring.newest() < oldestSequence) {
+                    oldest = entry.getKey();
+                    oldestSequence = ring.newest();
+                }
+            }
+            if (oldest == null) {
+                return false;
+            }
+            giveUp(oldest);
+        }
+        return true;
+    }
+
+    private void giveUp(String room) {
+        MessageRing ring = rooms.remove(room);
+        if (ring != null) {
+            ringBytes -= ring.size();
+            lostThrough = Math.max(lostThrough, ring.newest());
+            ring.retire();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            segmentSize += segment.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void openSegment(long firstSequence) throws IOException {
+        Path file = directory.resolve(String.format("%020d%s", firstSequence, SUFFIX));
+        segment = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segmentSize = segment.size();
+        segment.position(segmentSize);
+        segmentFiles.put(firstSequence, file);
+    }
+
+    /**
+     * Finds the last whole record of the newest segment, cuts off whatever
+     * follows it, and carries on numbering after it.
+     */
+    private void recover(Path file) throws IOException {
+        long sequence = firstSequence(file) - 1;
+        long end = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Record record;
+            while ((record = read(bytes)) != null) {
+                sequence = record.sequence;
+                end = bytes.position();
+            }
+        }
+        segment = FileChannel.open(file, StandardOpenOption.WRITE);
+        segment.truncate(end);
+        segment.position(end);
+        segmentSize = end;
+        lastSequence = sequence;
+    }
+
+    /**
+     * Reads the record at the position of the buffer and moves past it.
+     * Returns null, leaving the position alone, if there is no whole and
+     * intact record there.
+     */
+    static Record read(ByteBuffer bytes) {
+        int start = bytes.position();
+        if (bytes.remaining() < RECORD_OVERHEAD) {
+            return null;
+        }
+        int length = bytes.getInt(start);
+        if (length < RECORD_OVERHEAD - 8 || length > bytes.remaining() - 8) {
+            return null;
+        }
+        CRC32C check = new CRC32C();
+        check.update(bytes.duplicate().position(start + 4).limit(start + 4 + length));
+        if ((int) check.getValue() != bytes.getInt(start + 4 + length)) {
+            return null;
+        }
+        bytes.position(start + 4);
+        long sequence = bytes.getLong();
+        long timeMillis = bytes.getLong();
+        String sender = new String(field(bytes), StandardCharsets.UTF_8);
+        String audience = new String(field(bytes), StandardCharsets.UTF_8);
+        byte[] payload = field(bytes);
+        bytes.position(start + 4 + length + 4);
+        return new Record(sequence, timeMillis, sender, audience, payload);
+    }
+
+    private static byte[] field(ByteBuffer bytes) {
+        byte[] field = new byte[bytes.getInt()];
+        bytes.get(field);
+        return field;
+    }
+}
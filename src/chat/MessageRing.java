@@ -0,0 +1,300 @@
+package chat;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+
+/**
+ * The newest messages of one room, kept outside the Java heap so that
+ * thousands of rooms with thousands of messages each neither grow the
+ * heap nor give the garbage collector anything to trace or copy.
+ *
+ * The messages are kept as the MessageJournal encoded them, one after
+ * the other in a direct buffer that is written round and round.  A
+ * second direct buffer holds slots, one for each message, with its
+ * sequence number and where its bytes are.  Messages are numbered by
+ * position, from 0 on, and the slot of a position is the position
+ * modulo the number of slots.  Whenever a new message needs the bytes
+ * or the slot of the oldest one, the oldest is dropped.
+ *
+ * A ring starts out small, since most rooms only ever say a little, and
+ * is grown, when the journal lets it, by doubling up to the most slots
+ * and bytes it was made with.  Growing copies the messages into new
+ * buffers and then switches to them, so readers of the old ones read
+ * what was there.
+ *
+ * Only the journal thread writes, and any number of threads may read
+ * at the same time without locking.  A reader copies a message out and
+ * then checks that it was not dropped meanwhile, like the optimistic
+ * reads of a StampedLock: the writer moves the tail past a message
+ * before it writes over it, and the reader looks at the tail after it
+ * has read the message.
+ */
+final class MessageRing {
+
+    private static final int SLOT_SIZE = 8 + 4 + 4;
+
+    private static final int INITIAL_SLOTS = 64;
+    private static final int INITIAL_BYTES = 16 * 1024;
+
+    /**
+     * The buffers in use, switched for bigger ones as a whole.
+     */
+    private static final class Buffers {
+        final ByteBuffer data;
+        final ByteBuffer slots;
+        final int slotCount;
+
+        Buffers(int slotCount, int bytes) {
+            this.data = ByteBuffer.allocateDirect(bytes);
+            this.slots = ByteBuffer.allocateDirect(slotCount * SLOT_SIZE);
+            this.slotCount = slotCount;
+        }
+
+        int slot(long position) {
+            return (int) (position % slotCount) * SLOT_SIZE;
+        }
+    }
+
+    private final int maxSlots;
+    private final int maxBytes;
+    private volatile Buffers buffers;
+
+    /**
+     * The position the next message gets, and the oldest position still
+     * held.  Everything in between may be read.
+     */
+    private volatile long head;
+    private volatile long tail;
+
+    /**
+     * The sequence number from which on every message of the room is
+     * held, which is after the last one dropped.
+     */
+    private volatile long completeFrom;
+
+    /**
+     * Where in data the next message goes, how many bytes the messages
+     * held take up, and the sequence number of the newest one.  Only
+     * used by the writer.
+     */
+    private int writeOffset;
+    private int liveBytes;
+    private long newest;
+
+    /**
+     * Makes a ring of at most the given number of slots and bytes,
+     * holding every message of the room from the given sequence number on.
+     */
+    MessageRing(int maxSlots, int maxBytes, long completeFrom) {
+        this.maxSlots = maxSlots;
+        this.maxBytes = maxBytes;
+        this.buffers = new Buffers(Math.min(maxSlots, INITIAL_SLOTS), Math.min(maxBytes, INITIAL_BYTES));
+        this.completeFrom = completeFrom;
+        this.newest = completeFrom - 1;
+    }
+
+    /**
+     * Adds an encoded message, which is the bytes between the position
+     * and the limit of the buffer, dropping the oldest messages to make
+     * room.  Only called by the journal thread.
+     */
+    void add(long sequence, ByteBuffer record) {
+        Buffers buffers = this.buffers;
+        ByteBuffer data = buffers.data;
+        ByteBuffer slots = buffers.slots;
+        int length = record.remaining();
+        newest = sequence;
+        if (length > data.capacity()) {
+            // Too big to keep, so nothing before it is complete either
+            drop(head, sequence + 1);
+            liveBytes = 0;
+            return;
+        }
+        boolean wraps = writeOffset + length > data.capacity();
+        int offset = wraps ? 0 : writeOffset;
+        long oldest = tail;
+        while (oldest < head) {
+            int slot = buffers.slot(oldest);
+            int start = slots.getInt(slot + 8);
+            int end = start + slots.getInt(slot + 12);
+            boolean overwritten = head - oldest >= buffers.slotCount
+                    || overlaps(start, end, offset, offset + length)
+                    || (wraps && overlaps(start, end, writeOffset, data.capacity()));
+            if (!overwritten) {
+                break;
+            }
+            liveBytes -= end - start;
+            oldest++;
+        }
+        if (oldest != tail) {
+            drop(oldest, slots.getLong(buffers.slot(oldest - 1)) + 1);
+        }
+        data.put(offset, record, record.position(), length);
+        int slot = buffers.slot(head);
+        slots.putLong(slot, sequence);
+        slots.putInt(slot + 8, offset);
+        slots.putInt(slot + 12, length);
+        writeOffset = offset + length;
+        liveBytes += length;
+        head = head + 1;
+    }
+
+    /**
+     * Moves the tail, and makes sure no bytes are written over before
+     * readers can see that it moved.
+     */
+    private void drop(long newTail, long newCompleteFrom) {
+        tail = newTail;
+        completeFrom = newCompleteFrom;
+        VarHandle.fullFence();
+    }
+
+    /**
+     * Gives up the ring for good: readers go to the disk from now on,
+     * and the buffers are left to the garbage collector.
+     */
+    void retire() {
+        completeFrom = Long.MAX_VALUE;
+    }
+
+    /**
+     * The bytes of direct memory the ring takes up.
+     */
+    long size() {
+        Buffers buffers = this.buffers;
+        return buffers.data.capacity() + buffers.slots.capacity();
+    }
+
+    /**
+     * The bytes the ring would take up once grown so that it can hold a
+     * message of the given length without dropping any, as far as its
+     * limits let it.  That is its size now if it need not or cannot grow.
+     */
+    long sizeToHold(int length) {
+        return (long) dataCapacityToHold(length) + (long) slotCountToHold() * SLOT_SIZE;
+    }
+
+    /**
+     * Grows the ring to sizeToHold(length).  Only called by the journal
+     * thread.
+     */
+    void grow(int length) {
+        Buffers old = buffers;
+        int capacity = dataCapacityToHold(length);
+        int slotCount = slotCountToHold();
+        if (capacity == old.data.capacity() && slotCount == old.slotCount) {
+            return;
+        }
+        Buffers grown = new Buffers(slotCount, capacity);
+        int offset = 0;
+        for (long position = tail; position < head; position++) {
+            int from = old.slot(position);
+            int start = old.slots.getInt(from + 8);
+            int messageLength = old.slots.getInt(from + 12);
+            grown.data.put(offset, old.data, start, messageLength);
+            int to = grown.slot(position);
+            grown.slots.putLong(to, old.slots.getLong(from));
+            grown.slots.putInt(to + 8, offset);
+            grown.slots.putInt(to + 12, messageLength);
+            offset += messageLength;
+        }
+        writeOffset = offset;
+        buffers = grown;
+    }
+
+    private int dataCapacityToHold(int length) {
+        long capacity = buffers.data.capacity();
+        if (length > maxBytes) {
+            return (int) capacity;
+        }
+        while (capacity < maxBytes && liveBytes + length > capacity) {
+            capacity = Math.min(maxBytes, capacity * 2);
+        }
+        return (int) capacity;
+    }
+
+    private int slotCountToHold() {
+        long slotCount = buffers.slotCount;
+        while (slotCount < maxSlots && head - tail >= slotCount) {
+            slotCount = Math.min(maxSlots, slotCount * 2);
+        }
+        return (int) slotCount;
+    }
+
+    private static boolean overlaps(int start, int end, int otherStart, int otherEnd) {
+        return start < otherEnd && otherStart < end;
+    }
+
+    long head() {
+        return head;
+    }
+
+    long tail() {
+        return tail;
+    }
+
+    long completeFrom() {
+        return completeFrom;
+    }
+
+    /**
+     * The sequence number of the newest message added, kept or not.
+     * Only used by the writer.
+     */
+    long newest() {
+        return newest;
+    }
+
+    /**
+     * The sequence number of the message at the position, or -1 if it has
+     * been dropped.
+     */
+    long sequence(long position) {
+        Buffers buffers = this.buffers;
+        long sequence = buffers.slots.getLong(buffers.slot(position));
+        VarHandle.acquireFence();
+        return position >= tail ? sequence : -1;
+    }
+
+    /**
+     * The message at the position, or null if it has been dropped.
+     */
+    MessageJournal.Record read(long position) {
+        Buffers buffers = this.buffers;
+        int slot = buffers.slot(position);
+        int offset = buffers.slots.getInt(slot + 8);
+        int length = buffers.slots.getInt(slot + 12);
+        MessageJournal.Record record = null;
+        if (offset >= 0 && length > 0 && offset + length <= buffers.data.capacity()) {
+            // Copied out before it is checked, so the bytes that passed the
+            // checksum are the ones decoded.  A message written over while
+            // it was copied fails the checksum or the tail check below.
+            byte[] bytes = new byte[length];
+            buffers.data.get(offset, bytes);
+            record = MessageJournal.read(ByteBuffer.wrap(bytes));
+        }
+        VarHandle.acquireFence();
+        return position >= tail ? record : null;
+    }
+
+    /**
+     * The position of the oldest message held with at least the given
+     * sequence number, which is head if there is none.
+     */
+    long find(long sequence) {
+        long low = tail;
+        long high = head;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            long found = sequence(middle);
+            if (found < 0) {
+                low = Math.max(middle + 1, tail);
+            } else if (found < sequence) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
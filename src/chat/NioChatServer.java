@@ -0,0 +1,433 @@
+package chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking variant of the chat server.  Rather than spawning a
+ * thread per client, the listening loop hands every accepted channel
+ * to one of a small fixed set of event loops, and each event loop
+ * multiplexes all of its clients over a single selector.  Mostly idle
+ * clients therefore cost a selection key and a few small objects
+ * instead of a whole thread stack.
+ *
+ * The server speaks exactly the same line protocol as the Handler in
+ * ChatServer: it sends "SUBMITNAME" until a unique name is received,
+ * acknowledges with "NAMEACCEPTED", keeps every client's active users
+ * list up to date with "NEW_USER" and "REMOVE_USER", and routes
+ * "RECEIVERS>>MESSAGE" lines to their receivers prefixed with "MESSAGE ".
+ *
+ * A connection that is being closed cleanly stops being read from and
+ * is closed by its event loop once it has been written out in full, or
+ * when the drain time is up.  The event loops do that for all of their
+ * connections side by side.
+ */
+public class NioChatServer implements Closeable {
+
+    /**
+     * The size of the buffer each event loop reads into.  It is shared
+     * by all the clients of the loop, so it costs nothing per client.
+     */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The most frames handed to the socket in a single gathering write.
+     */
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    /**
+     * How often an event loop with connections draining checks whether
+     * any of them has run out of time.
+     */
+    private static final long DRAIN_CHECK_MILLIS = 100;
+
+    private final ChatRoom room;
+    private final ServerConfig config;
+    private final ServerMetrics metrics;
+    private final EventLoop[] loops;
+    private final ServerSocketChannel listener;
+
+    public NioChatServer(ChatRoom room, ServerConfig config, ServerMetrics metrics) {
+        this.room = room;
+        this.config = config;
+        this.metrics = metrics;
+        this.loops = new EventLoop[Math.max(1, config.ioThreads)];
+        try {
+            this.listener = ServerSocketChannel.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Starts the event loops and then accepts connections until the
+     * server is closed, handing them out to the loops in turn.
+     */
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            Thread loopThread = new Thread(loops[i], "chat-io-" + i);
+            loops[i].thread = loopThread;
+            loopThread.start();
+        }
+        try {
+            listener.bind(new InetSocketAddress(config.port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = listener.accept();
+                metrics.accepted();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } catch (ClosedChannelException e) {
+            // Closed to stop accepting.
+        } finally {
+            listener.close();
+        }
+    }
+
+    /**
+     * Stops accepting connections.  The ones already open carry on.
+     */
+    public void close() throws IOException {
+        listener.close();
+    }
+
+    /**
+     * Deals with one complete line from a client.  Until the client has
+     * a name every line is part of the handshake, afterwards every line is
+     * a message to be routed, exactly as in the blocking Handler.
+     */
+    private void handleLine(Connection connection, byte[] line) {
+        FrameDecoder decoder = connection.decoder;
+        if (line == FrameDecoder.REJECTED) {
+            room.rejected(connection);
+            return;
+        }
+        if (!connection.accepted) {
+            room.handshake(connection, decoder.text(line));
+            decoder.binary = connection.binary;
+            return;
+        }
+        room.route(connection, line, decoder.charset());
+    }
+
+    /**
+     * A single selector thread servicing many connections.  Other
+     * threads only ever talk to it through its queues, followed by a
+     * wakeup of the selector.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingFlushes = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Connections being closed cleanly, oldest first, so the ones
+         * that run out of drain time can be cut off.
+         */
+        private final ArrayDeque<Connection> draining = new ArrayDeque<>();
+        private Thread thread;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Hands a freshly accepted channel over to this loop.
+         */
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Asks the loop to write out whatever is queued for a connection.
+         */
+        void scheduleFlush(Connection connection) {
+            pendingFlushes.add(connection);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    // While anything is draining, look at the clock now and then.
+                    selector.select(draining.isEmpty() ? 0 : DRAIN_CHECK_MILLIS);
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                read(connection);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                flush(connection);
+                            }
+                        } catch (IOException e) {
+                            close(connection);
+                        }
+                    }
+
+                    // Writes queued while handling the keys above, or by other
+                    // loops, go out once per pass rather than once per line.
+                    Connection connection;
+                    while ((connection = pendingFlushes.poll()) != null) {
+                        connection.flushScheduled.set(false);
+                        if (connection.disconnectRequested) {
+                            close(connection);
+                            continue;
+                        }
+                        if (connection.finishing && !connection.draining) {
+                            startDraining(connection);
+                        }
+                        flush(connection);
+                    }
+                    cutOffDrained();
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingRegistrations.poll()) != null) {
+                Connection connection = new Connection(channel, this, config, metrics);
+                try {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    room.greet(connection);
+                } catch (ClosedChannelException e) {
+                    close(connection);
+                }
+            }
+        }
+
+        /**
+         * Writes out what is queued for a connection, and closes it if it
+         * is draining and that was the last of it.
+         */
+        private void flush(Connection connection) {
+            try {
+                connection.flush(writeBatch);
+                if (connection.draining && connection.isDrained()) {
+                    close(connection);
+                }
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        /**
+         * Stops reading from a connection that is finishing and takes it
+         * out of the room, so that only what is queued is left to write.
+         */
+        private void startDraining(Connection connection) {
+            connection.draining = true;
+            connection.drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.drainMillis);
+            draining.add(connection);
+            room.leave(connection);
+        }
+
+        /**
+         * Forgets the connections that have finished draining, and closes
+         * the ones whose drain time is up.
+         */
+        private void cutOffDrained() {
+            long now = System.nanoTime();
+            Connection connection;
+            while ((connection = draining.peek()) != null
+                    && (connection.closed || now - connection.drainDeadline >= 0)) {
+                draining.poll();
+                close(connection);
+            }
+        }
+
+        /**
+         * Reads what is available and hands every complete line or frame
+         * to the protocol.  The connection's decoder keeps anything
+         * incomplete until the rest arrives.
+         */
+        private void read(Connection connection) throws IOException {
+            readBuffer.clear();
+            int count = connection.channel.read(readBuffer);
+            if (count < 0) {
+                close(connection);
+                return;
+            }
+            readBuffer.flip();
+            byte[] line;
+            while (!connection.finishing && (line = connection.decoder.next(readBuffer)) != null) {
+                handleLine(connection, line);
+            }
+        }
+
+        private void close(Connection connection) {
+            if (connection.closed) {
+                return;
+            }
+            connection.closed = true;
+            if (connection.key != null) {
+                connection.key.cancel();
+            }
+            try {
+                connection.channel.close();
+            } catch (IOException ignored) {
+            }
+            room.leave(connection);
+            metrics.closed();
+        }
+    }
+
+    /**
+     * Everything the event loop knows about one client: its channel,
+     * the start of a line that has not been completed yet, which is never
+     * more than the longest line allowed, and the frames that have only
+     * been written in part.  The event loop is the
+     * writer that drains the session's outbound queue.
+     */
+    private static class Connection extends Session {
+        final SocketChannel channel;
+        final EventLoop loop;
+        final AtomicBoolean flushScheduled = new AtomicBoolean();
+        volatile boolean disconnectRequested;
+        SelectionKey key;
+
+        /**
+         * Set by the event loop once the connection is finishing, and when
+         * it gets cut off if it has not been written out by then.
+         */
+        boolean draining;
+        long drainDeadline;
+
+        /**
+         * Frames the socket did not take all of last time, in order.  These
+         * are views of their own on the shared frames.  Only allocated once
+         * the client has fallen behind.
+         */
+        private ArrayDeque<ByteBuffer> unwritten;
+
+        /**
+         * Cuts what the client sends into lines or frames, and holds on
+         * to the start of one that has not arrived in full.
+         */
+        final FrameDecoder decoder;
+
+        Connection(SocketChannel channel, EventLoop loop, ServerConfig config, ServerMetrics metrics) {
+            super(config, metrics);
+            this.channel = channel;
+            this.loop = loop;
+            this.decoder = new FrameDecoder(config, metrics);
+        }
+
+        /**
+         * Makes sure the event loop gets round to writing the queue.
+         */
+        protected void queued() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.scheduleFlush(this);
+            }
+        }
+
+        /**
+         * Only the event loop may close the channel, so just ask it to.
+         */
+        protected void disconnect() {
+            disconnectRequested = true;
+            loop.scheduleFlush(this);
+        }
+
+        /**
+         * The event loop starts draining the connection when it gets round
+         * to flushing it.
+         */
+        protected void closeWhenDrained() {
+            loop.scheduleFlush(this);
+        }
+
+        /**
+         * Whether nothing is left to write.
+         */
+        boolean isDrained() {
+            return (unwritten == null || unwritten.isEmpty()) && outbound.isEmpty();
+        }
+
+        /**
+         * Writes as much queued output as the socket will take, and asks
+         * to be told when it can take more if anything is left over.  The
+         * frames are gathered into the loop's batch so that everything
+         * queued for the client goes out in as few writes as possible.
+         * Only called from the owning event loop.
+         */
+        void flush(ByteBuffer[] batch) throws IOException {
+            if (closed) {
+                return;
+            }
+            while (true) {
+                int count = 0;
+                if (unwritten != null) {
+                    while (count < batch.length && !unwritten.isEmpty()) {
+                        batch[count++] = unwritten.poll();
+                    }
+                }
+                Frame frame;
+                while (count < batch.length && (frame = outbound.poll()) != null) {
+                    batch[count++] = frame.buffer(binary);
+                }
+                // A draining connection is not read from any more
+                int reading = draining ? 0 : SelectionKey.OP_READ;
+                if (count == 0) {
+                    key.interestOps(reading);
+                    return;
+                }
+
+                long bytes = channel.write(batch, 0, count);
+                int written = 0;
+                while (written < count && !batch[written].hasRemaining()) {
+                    written++;
+                }
+                metrics.flushed(written, bytes);
+                if (written < count) {
+                    // The socket is full.  Put back what is left, in front of
+                    // anything still waiting from earlier, and wait for it.
+                    if (unwritten == null) {
+                        unwritten = new ArrayDeque<>();
+                    }
+                    for (int i = count - 1; i >= written; i--) {
+                        unwritten.addFirst(batch[i]);
+                    }
+                    Arrays.fill(batch, 0, count, null);
+                    key.interestOps(reading | SelectionKey.OP_WRITE);
+                    return;
+                }
+                Arrays.fill(batch, 0, count, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package chat;
+
+/**
+ * The messages, bytes and recipients per second one sender, or the
+ * whole server, may route.  Each limit is a TokenBucket, and a limit
+ * of 0 is no limit at all and costs nothing to check.
+ */
+final class RateLimiter {
+
+    /**
+     * The things that are limited.
+     */
+    enum Limit {
+        MESSAGES, BYTES, RECIPIENTS
+    }
+
+    private final TokenBucket messages;
+    private final TokenBucket bytes;
+    private final TokenBucket recipients;
+
+    RateLimiter(long messagesPerSecond, long bytesPerSecond, long recipientsPerSecond) {
+        this.messages = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond) : null;
+        this.bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : null;
+        this.recipients = recipientsPerSecond > 0 ? new TokenBucket(recipientsPerSecond) : null;
+    }
+
+    /**
+     * The limits for one session.
+     */
+    static RateLimiter perSession(ServerConfig config) {
+        return new RateLimiter(config.rateMessages, config.rateBytes, config.rateRecipients);
+    }
+
+    /**
+     * The limits for the whole server.
+     */
+    static RateLimiter global(ServerConfig config) {
+        return new RateLimiter(config.globalRateMessages, config.globalRateBytes, config.globalRateRecipients);
+    }
+
+    /**
+     * Accounts for one inbound line of the given length.  Returns null
+     * if it may go ahead, otherwise the limit it ran into.
+     */
+    Limit admitLine(int length) {
+        if (messages != null && !messages.tryTake(1)) {
+            return Limit.MESSAGES;
+        }
+        if (bytes != null && !bytes.tryTake(length)) {
+            if (messages != null) {
+                messages.giveBack(1);
+            }
+            return Limit.BYTES;
+        }
+        return null;
+    }
+
+    /**
+     * Gives back what admitLine took for a line that went no further
+     * after all.
+     */
+    void refundLine(int length) {
+        if (messages != null) {
+            messages.giveBack(1);
+        }
+        if (bytes != null) {
+            bytes.giveBack(length);
+        }
+    }
+
+    /**
+     * Accounts for a message going to the given number of sessions.
+     * Returns whether it may go ahead.
+     */
+    boolean admitRecipients(int count) {
+        return recipients == null || recipients.tryTake(count);
+    }
+
+    /**
+     * Gives back what admitRecipients took for a message that was not
+     * sent after all.
+     */
+    void refundRecipients(int count) {
+        if (recipients != null) {
+            recipients.giveBack(count);
+        }
+    }
+}
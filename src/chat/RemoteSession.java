@@ -0,0 +1,55 @@
+package chat;
+
+/**
+ * A user connected to another server of the cluster, as this server
+ * sees it.  It is registered under the user's name like any local
+ * session, so the user shows up in the active users lists and direct
+ * messages resolve to it.  What is queued for it is passed on over the
+ * connection to its server, which delivers it to the user.
+ */
+final class RemoteSession extends Session {
+
+    /**
+     * The server the user is connected to.
+     */
+    final Cluster.Peer peer;
+
+    /**
+     * Sent ahead of every frame for the user, so its server knows who
+     * the frame is for.
+     */
+    private final Frame header;
+
+    RemoteSession(ServerConfig config, ServerMetrics metrics, Cluster.Peer peer, String name) {
+        super(config, metrics);
+        this.peer = peer;
+        this.name = name;
+        this.header = Frame.line("TO " + name);
+        this.accepted = true;
+    }
+
+    /**
+     * Passes the queued frames on.  Whoever queued a frame passes it on,
+     * under the lock, so the frames of one sender stay in order.
+     */
+    @Override
+    protected void queued() {
+        synchronized (this) {
+            Frame frame;
+            while ((frame = outbound.poll()) != null) {
+                peer.send(header, frame);
+            }
+        }
+    }
+
+    /**
+     * The user is dropped by its own server, not by this one.
+     */
+    @Override
+    protected void disconnect() {
+    }
+
+    @Override
+    protected void closeWhenDrained() {
+    }
+}
@@ -0,0 +1,356 @@
+package chat;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses the "RECEIVERS>>MESSAGE" routing header of an inbound line
+ * and resolves the receivers to sessions, without allocating.  Instead
+ * of input.split(">>") and split(",") it only remembers positions in
+ * the line, it looks the names up through a reusable key rather than
+ * substrings, and it collects the sessions in a buffer that is reused
+ * from one message to the next.
+ *
+ * Lines straight off the wire are parsed as bytes, through a view that
+ * reads every byte as a char.  '>' and ',' are single bytes in UTF-8
+ * and in the usual platform charsets, and never part of a longer
+ * character, so the header can be found and the body skipped without
+ * decoding anything.  Only a header holding non-ASCII names is decoded,
+ * so that the names can be looked up.
+ *
+ * Each session gets its own parser the first time it sends something,
+ * and only that session's reading thread ever uses it.
+ *
+ * The rules are the ones the split() based code had:
+ *
+ *     - the line must split into exactly two parts around ">>", where
+ *       empty parts at the end do not count, so "ALL>>" and "a>>b>>c"
+ *       are not routable but "a>>b>>" is
+ *     - "ALL", possibly followed by commas, means every active user
+ *     - otherwise the receivers are comma separated names, and names
+ *       nobody has are skipped, though noted, so that the message can
+ *       be kept for them
+ *     - a receiver starting with "#" is a channel, and stands for all
+ *       of its members, provided the sender is one of them
+ *     - the sender always gets a copy, and nobody gets two
+ */
+final class RouteParser {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final SessionRegistry.NameKey key = new SessionRegistry.NameKey();
+    private final ByteChars bytes = new ByteChars();
+
+    private CharSequence input;
+
+    /**
+     * The receivers, as text, when the line was given as bytes and the
+     * header is not plain ASCII, otherwise null.
+     */
+    private String decodedHeader;
+    private int headerEnd;
+    private int bodyStart;
+    private int bodyEnd;
+    private boolean broadcast;
+
+    /**
+     * The channel, if the receivers were just one channel.
+     */
+    private Channel channel;
+
+    /**
+     * The resolved sessions, the sender first.
+     */
+    private Session[] recipients = new Session[INITIAL_CAPACITY];
+    private int recipientCount;
+
+    /**
+     * An identity hash set over the recipients, so receivers named
+     * twice are only delivered to once.  Twice the size of recipients,
+     * and only the slots that were used get cleared.
+     */
+    private Session[] seen = new Session[INITIAL_CAPACITY * 2];
+
+    /**
+     * Where the names that nobody has are in the header, as pairs of
+     * start and end, each name once.
+     */
+    private int[] absent = new int[INITIAL_CAPACITY];
+    private int absentCount;
+
+    /**
+     * Parses the routing header of a line.  Returns false if the line
+     * does not have the "RECEIVERS>>MESSAGE" structure.
+     */
+    boolean parse(CharSequence line) {
+        clear();
+        input = line;
+        int length = line.length();
+        headerEnd = indexOfSeparator(line, 0);
+        if (headerEnd < 0) {
+            return false;
+        }
+        bodyStart = headerEnd + 2;
+        int next = indexOfSeparator(line, bodyStart);
+        if (next < 0) {
+            bodyEnd = length;
+        } else {
+            // Anything after a second separator must be nothing but more
+            // separators, which split() would have dropped as empty.
+            bodyEnd = next;
+            for (int i = next; i < length; i += 2) {
+                if (indexOfSeparator(line, i) != i) {
+                    return false;
+                }
+            }
+        }
+        if (bodyEnd == bodyStart) {
+            return false;
+        }
+
+        int receiversEnd = headerEnd;
+        while (receiversEnd > 0 && line.charAt(receiversEnd - 1) == ',') {
+            receiversEnd--;
+        }
+        broadcast = receiversEnd == 3
+                && line.charAt(0) == 'A' && line.charAt(1) == 'L' && line.charAt(2) == 'L';
+        return true;
+    }
+
+    /**
+     * Parses the routing header of a line of bytes in the given charset,
+     * like parse(CharSequence).  The body is left as it is, between
+     * bodyStart() and bodyEnd().
+     */
+    boolean parse(byte[] line, Charset charset) {
+        clear();
+        bytes.of(line);
+        if (!parse(bytes)) {
+            return false;
+        }
+        for (int i = 0; i < headerEnd; i++) {
+            if (line[i] < 0) {
+                decodedHeader = new String(line, 0, headerEnd, charset);
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the parsed line is for every active user.
+     */
+    boolean isBroadcast() {
+        return broadcast;
+    }
+
+    int bodyStart() {
+        return bodyStart;
+    }
+
+    int bodyEnd() {
+        return bodyEnd;
+    }
+
+    /**
+     * Looks up the receivers of the parsed, non broadcast line and
+     * collects the sender and every accepted receiver.  Returns how
+     * many sessions were collected, so 1 means none of the receivers
+     * could be found.
+     */
+    int resolve(SessionRegistry registry, Session sender) {
+        add(sender);
+        CharSequence header = decodedHeader != null ? decodedHeader : input;
+        int headerEnd = decodedHeader != null ? decodedHeader.length() : this.headerEnd;
+        int receivers = 0;
+        Channel lastChannel = null;
+        int start = 0;
+        while (start <= headerEnd) {
+            int end = start;
+            while (end < headerEnd && header.charAt(end) != ',') {
+                end++;
+            }
+            if (end > start) {
+                receivers++;
+                if (header.charAt(start) == '#') {
+                    lastChannel = registry.channel(key.of(header, start, end));
+                    if (lastChannel != null && lastChannel.members.contains(sender)) {
+                        for (Session member : lastChannel.members) {
+                            if (member.accepted) {
+                                add(member);
+                            }
+                        }
+                    }
+                } else {
+                    Session session = registry.get(key.of(header, start, end));
+                    if (session != null && session.accepted) {
+                        add(session);
+                    } else {
+                        addAbsent(header, start, end);
+                    }
+                }
+            }
+            start = end + 1;
+        }
+        key.clear();
+        if (receivers == 1 && lastChannel != null && lastChannel.members.contains(sender)) {
+            channel = lastChannel;
+        }
+        return recipientCount;
+    }
+
+    /**
+     * The channel the resolved line went to, if its receivers were just
+     * one channel that the sender is in, otherwise null.
+     */
+    Channel channel() {
+        return channel;
+    }
+
+    Session recipient(int index) {
+        return recipients[index];
+    }
+
+    /**
+     * The number of receivers of the resolved line that were names
+     * nobody who has been accepted has.
+     */
+    int absentCount() {
+        return absentCount;
+    }
+
+    String absent(int index) {
+        CharSequence header = decodedHeader != null ? decodedHeader : input;
+        return header.subSequence(absent[2 * index], absent[2 * index + 1]).toString();
+    }
+
+    private void addAbsent(CharSequence header, int start, int end) {
+        for (int i = 0; i < absentCount; i++) {
+            if (regionMatches(header, absent[2 * i], absent[2 * i + 1], start, end)) {
+                return;
+            }
+        }
+        if (2 * absentCount == absent.length) {
+            int[] grown = new int[absent.length * 2];
+            System.arraycopy(absent, 0, grown, 0, absent.length);
+            absent = grown;
+        }
+        absent[2 * absentCount] = start;
+        absent[2 * absentCount + 1] = end;
+        absentCount++;
+    }
+
+    private static boolean regionMatches(CharSequence text, int start, int end, int otherStart, int otherEnd) {
+        if (end - start != otherEnd - otherStart) {
+            return false;
+        }
+        for (int i = 0; i < end - start; i++) {
+            if (text.charAt(start + i) != text.charAt(otherStart + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lets go of the line and the sessions of the last message, so the
+     * parser does not keep closed sessions reachable.
+     */
+    void clear() {
+        int mask = seen.length - 1;
+        for (int i = 0; i < recipientCount; i++) {
+            Session session = recipients[i];
+            int slot = System.identityHashCode(session) & mask;
+            while (seen[slot] != session) {
+                slot = (slot + 1) & mask;
+            }
+            seen[slot] = null;
+            recipients[i] = null;
+        }
+        recipientCount = 0;
+        absentCount = 0;
+        if (input == bytes) {
+            bytes.of(null);
+        }
+        input = null;
+        decodedHeader = null;
+        channel = null;
+    }
+
+    private void add(Session session) {
+        int mask = seen.length - 1;
+        int slot = System.identityHashCode(session) & mask;
+        while (seen[slot] != null) {
+            if (seen[slot] == session) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (recipientCount == recipients.length) {
+            grow();
+            add(session);
+            return;
+        }
+        seen[slot] = session;
+        recipients[recipientCount++] = session;
+    }
+
+    /**
+     * Doubles the buffers and rehashes what has been collected so far.
+     * Only happens until the buffers fit the largest receiver list the
+     * session has used.
+     */
+    private void grow() {
+        Session[] collected = recipients;
+        int count = recipientCount;
+        recipients = new Session[collected.length * 2];
+        seen = new Session[recipients.length * 2];
+        recipientCount = 0;
+        for (int i = 0; i < count; i++) {
+            add(collected[i]);
+        }
+    }
+
+    private static int indexOfSeparator(CharSequence line, int from) {
+        for (int i = from; i < line.length() - 1; i++) {
+            if (line.charAt(i) == '>' && line.charAt(i + 1) == '>') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A reusable view of a line of bytes as chars, one char per byte.
+     * Right for ASCII, and enough to find the ASCII separators in
+     * anything else.
+     */
+    private static final class ByteChars implements CharSequence {
+        private byte[] bytes;
+
+        ByteChars of(byte[] bytes) {
+            this.bytes = bytes;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return bytes.length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
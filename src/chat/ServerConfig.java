@@ -0,0 +1,377 @@
+package chat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Startup options for the chat server.  Options are passed on the
+ * command line as "--name=value" pairs, for example
+ *
+ *     java -cp app/target/classes chat.ChatServer --mode=nio --io-threads=4
+ *
+ * Anything that is not given keeps the default below, so running
+ * the server without arguments behaves exactly as it always has.
+ */
+public class ServerConfig {
+
+    /**
+     * The ways the server can service its clients.
+     *
+     *     THREADS  one platform thread running a Handler per client
+     *     VIRTUAL  one virtual thread running a Handler per client
+     *              (needs Java 21 or later)
+     *     NIO      a small fixed set of selector-based event loops
+     */
+    public enum Mode {
+        THREADS, VIRTUAL, NIO
+    }
+
+    /**
+     * What to do with a line for a client whose outbound queue is full.
+     *
+     *     DROP_OLDEST  discard the oldest queued lines to make room
+     *     DISCONNECT   drop the client, it cannot keep up
+     *     BLOCK        make the sender wait for room, and drop the
+     *                  client if none frees up in time.  Meant for the
+     *                  thread modes; in NIO mode it stalls an event loop.
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST, DISCONNECT, BLOCK
+    }
+
+    /**
+     * What to do with a line from a client that is longer than allowed.
+     * The line is never buffered in full either way.
+     *
+     *     REJECT      drop the line and tell the client "LINE_TOO_LONG"
+     *     TRUNCATE    keep the start of the line, up to the maximum
+     *     DISCONNECT  drop the client
+     */
+    public enum OversizePolicy {
+        REJECT, TRUNCATE, DISCONNECT
+    }
+
+    /**
+     * The port that the server listens on.
+     */
+    int port = 9001;
+
+    /**
+     * How clients are serviced.
+     */
+    Mode mode = Mode.THREADS;
+
+    /**
+     * The number of event loops used in NIO mode.
+     */
+    int ioThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The number of lines that may wait to be written to one client.
+     */
+    int outboundQueueSize = 1024;
+
+    /**
+     * What happens when a client's outbound queue is full.
+     */
+    OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    /**
+     * How long a sender waits for room under the BLOCK policy.
+     */
+    long overflowBlockMillis = 5000;
+
+    /**
+     * How long a blocking writer keeps collecting lines for a client
+     * before flushing them together.  With 0 it flushes as soon as the
+     * queue is empty.  The event loops always flush once per pass.
+     */
+    long flushWindowMillis = 0;
+
+    /**
+     * The most names sent in one "USER_LIST" line.  Larger rosters are
+     * split over several lines.  0 sends the whole roster in one line.
+     */
+    int rosterPageSize = 1000;
+
+    /**
+     * The longest line a client may send, in bytes, not counting the line
+     * end or frame header.  This also bounds what is buffered for a
+     * client whose line has not arrived in full.
+     */
+    int maxLineBytes = 65536;
+
+    /**
+     * What happens to a line that is longer than that.
+     */
+    OversizePolicy oversizePolicy = OversizePolicy.REJECT;
+
+    /**
+     * How long joins and leaves are collected before being sent out in
+     * one PRESENCE_DELTA line.  0 sends every change on its own.
+     */
+    long presenceIntervalMillis = 250;
+
+    /**
+     * How many messages, bytes and recipients per second one client may
+     * send, and all clients together may send.  Lines over the limit are
+     * dropped and the sender is told "THROTTLED".  0 is no limit.  Only
+     * messages count, commands like QUIT, PONG or HISTORY never do.
+     */
+    long rateMessages = 0;
+    long rateBytes = 0;
+    long rateRecipients = 0;
+    long globalRateMessages = 0;
+    long globalRateBytes = 0;
+    long globalRateRecipients = 0;
+
+    /**
+     * How long a client that asked for HEARTBEAT may stay quiet before it
+     * is sent a "PING", and before it is dropped, in seconds.  A timeout
+     * of 0 turns idle detection off.  Every connection also has TCP
+     * keepalive turned on, which catches dead peers of the other clients,
+     * if much more slowly.
+     */
+    long heartbeatSeconds = 30;
+    long idleTimeoutSeconds = 90;
+
+    /**
+     * How long a closing connection gets to write out what is still
+     * queued for it, after the client quits or when the server shuts
+     * down.
+     */
+    long drainMillis = 5000;
+
+    /**
+     * The directory the message journal is kept in.  Without one no
+     * journal is kept.
+     */
+    String journalDirectory = null;
+
+    /**
+     * The size at which the journal starts a new segment file.
+     */
+    long journalSegmentBytes = 64L * 1024 * 1024;
+
+    /**
+     * Whether the journal forces every batch it writes to disk.  Without
+     * that a crash of the machine may lose what the operating system had
+     * not written yet.
+     */
+    boolean journalFsync = true;
+
+    /**
+     * How many of the newest journaled messages of each room, that is of
+     * "ALL", of every channel and of all direct messages together, are
+     * kept in memory for HISTORY requests, and in how many bytes at most.
+     * They are kept off the heap, so the heap need not be sized for them,
+     * in direct memory that grows with what a room says up to those
+     * limits, and all rooms together take up at most historyTotalBytes.
+     * Older messages are read back from the journal files.
+     */
+    int historySize = 10000;
+    int historyRoomBytes = 2 * 1024 * 1024;
+    long historyTotalBytes = 64L * 1024 * 1024;
+
+    /**
+     * The most messages one HISTORY request is answered with.  A client
+     * wanting more asks again from where the answer left off.
+     */
+    int historyMax = 1000;
+
+    /**
+     * How many messages are kept for a name nobody has, to be delivered
+     * when somebody takes it, and for how many names at most.  0 turns
+     * the mailboxes off.
+     */
+    int mailboxSize = 100;
+    int mailboxUsers = 10000;
+
+    /**
+     * The most bytes of messages one mailbox holds, and all of them
+     * together.
+     */
+    int mailboxBytes = 256 * 1024;
+    long mailboxTotalBytes = 64L * 1024 * 1024;
+
+    /**
+     * This server's number in a cluster of servers.  0, the default,
+     * means it is on its own.
+     */
+    int nodeId = 0;
+
+    /**
+     * The port the other servers of the cluster connect to, and the
+     * address it is bound to.  Without an address it is bound to all of
+     * them.
+     */
+    int clusterPort = 9101;
+    String clusterBind = null;
+
+    /**
+     * A secret the servers of the cluster share, with which they prove to
+     * each other who they are.  It is read from a file, so it does not
+     * show in the list of processes.  Without one a server is only
+     * trusted for connecting from the address of a configured peer.
+     */
+    String clusterSecret = null;
+
+    /**
+     * The other servers of the cluster, as comma separated "id@host:port"
+     * entries, like "2@10.0.0.2:9101,3@10.0.0.3:9101".
+     */
+    String peers = "";
+
+    /**
+     * How often to print statistics, in seconds.  0 turns them off.
+     */
+    int statsIntervalSeconds = 0;
+
+    /**
+     * The port serving the metrics as plain text.  0 turns it off; the
+     * metrics are always available over JMX.
+     */
+    int metricsPort = 0;
+
+    /**
+     * Parses the command line arguments into a configuration, failing
+     * on anything it does not understand so typos are not silently
+     * ignored.
+     */
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            switch (name) {
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "mode":
+                    config.mode = Mode.valueOf(value.toUpperCase());
+                    break;
+                case "io-threads":
+                    config.ioThreads = Integer.parseInt(value);
+                    break;
+                case "outbound-queue":
+                    config.outboundQueueSize = Integer.parseInt(value);
+                    break;
+                case "overflow":
+                    config.overflowPolicy = OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+                    break;
+                case "overflow-block-ms":
+                    config.overflowBlockMillis = Long.parseLong(value);
+                    break;
+                case "flush-window-ms":
+                    config.flushWindowMillis = Long.parseLong(value);
+                    break;
+                case "roster-page-size":
+                    config.rosterPageSize = Integer.parseInt(value);
+                    break;
+                case "max-line-bytes":
+                    config.maxLineBytes = Integer.parseInt(value);
+                    break;
+                case "oversize":
+                    config.oversizePolicy = OversizePolicy.valueOf(value.toUpperCase());
+                    break;
+                case "presence-interval-ms":
+                    config.presenceIntervalMillis = Long.parseLong(value);
+                    break;
+                case "rate-messages":
+                    config.rateMessages = Long.parseLong(value);
+                    break;
+                case "rate-bytes":
+                    config.rateBytes = Long.parseLong(value);
+                    break;
+                case "rate-recipients":
+                    config.rateRecipients = Long.parseLong(value);
+                    break;
+                case "global-rate-messages":
+                    config.globalRateMessages = Long.parseLong(value);
+                    break;
+                case "global-rate-bytes":
+                    config.globalRateBytes = Long.parseLong(value);
+                    break;
+                case "global-rate-recipients":
+                    config.globalRateRecipients = Long.parseLong(value);
+                    break;
+                case "heartbeat-s":
+                    config.heartbeatSeconds = Long.parseLong(value);
+                    break;
+                case "idle-timeout-s":
+                    config.idleTimeoutSeconds = Long.parseLong(value);
+                    break;
+                case "drain-ms":
+                    config.drainMillis = Long.parseLong(value);
+                    break;
+                case "journal-dir":
+                    config.journalDirectory = value;
+                    break;
+                case "journal-segment-mb":
+                    config.journalSegmentBytes = Long.parseLong(value) * 1024 * 1024;
+                    break;
+                case "journal-fsync":
+                    config.journalFsync = Boolean.parseBoolean(value);
+                    break;
+                case "history-size":
+                    config.historySize = Integer.parseInt(value);
+                    break;
+                case "history-room-kb":
+                    config.historyRoomBytes = Integer.parseInt(value) * 1024;
+                    break;
+                case "history-total-mb":
+                    config.historyTotalBytes = Long.parseLong(value) * 1024 * 1024;
+                    break;
+                case "history-max":
+                    config.historyMax = Integer.parseInt(value);
+                    break;
+                case "mailbox-size":
+                    config.mailboxSize = Integer.parseInt(value);
+                    break;
+                case "mailbox-users":
+                    config.mailboxUsers = Integer.parseInt(value);
+                    break;
+                case "mailbox-kb":
+                    config.mailboxBytes = Integer.parseInt(value) * 1024;
+                    break;
+                case "mailbox-total-mb":
+                    config.mailboxTotalBytes = Long.parseLong(value) * 1024 * 1024;
+                    break;
+                case "node-id":
+                    config.nodeId = Integer.parseInt(value);
+                    break;
+                case "cluster-port":
+                    config.clusterPort = Integer.parseInt(value);
+                    break;
+                case "cluster-bind":
+                    config.clusterBind = value;
+                    break;
+                case "cluster-secret-file":
+                    try {
+                        config.clusterSecret = Files.readString(Path.of(value)).trim();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    break;
+                case "peers":
+                    config.peers = value;
+                    break;
+                case "stats-interval-s":
+                    config.statsIntervalSeconds = Integer.parseInt(value);
+                    break;
+                case "metrics-port":
+                    config.metricsPort = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        return config;
+    }
+}
@@ -0,0 +1,445 @@
+package chat;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters describing what the server is doing.  They are updated on
+ * the hot paths from many threads at once, so they are all LongAdders
+ * or Distributions and never make those threads wait for each other.
+ * They can be read over JMX, scraped as text from the MetricsEndpoint,
+ * and printed every so often.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    /**
+     * The number of times a writer pushed its batch of frames to the socket.
+     */
+    final LongAdder flushes = new LongAdder();
+
+    /**
+     * The number of frames written by those flushes.
+     */
+    final LongAdder framesFlushed = new LongAdder();
+
+    /**
+     * The number of bytes written by those flushes.
+     */
+    final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * The number of connections accepted, and the number closed again.
+     */
+    final LongAdder accepts = new LongAdder();
+    final LongAdder closes = new LongAdder();
+
+    /**
+     * The number of messages clients asked to have routed.
+     */
+    final LongAdder messagesIn = new LongAdder();
+
+    /**
+     * The number of lines that were longer than allowed.
+     */
+    final LongAdder oversized = new LongAdder();
+
+    /**
+     * The number of clients dropped for staying quiet too long.
+     */
+    final LongAdder idleDisconnects = new LongAdder();
+
+    /**
+     * The number of messages written to the journal, and the number left
+     * out because it could not keep up.
+     */
+    final LongAdder journaled = new LongAdder();
+    final LongAdder journalDropped = new LongAdder();
+
+    /**
+     * How long each group commit of the journal took to force, in
+     * nanoseconds.
+     */
+    final Distribution journalSyncNanos = new Distribution();
+
+    /**
+     * The number of messages kept in a mailbox for a name nobody had, and
+     * the number refused because the mailbox was full.
+     */
+    final LongAdder mailboxed = new LongAdder();
+    final LongAdder mailboxRefused = new LongAdder();
+
+    /**
+     * The number of frames for other servers of the cluster dropped
+     * because the connection to them was down or could not keep up.
+     */
+    final LongAdder peerDropped = new LongAdder();
+
+    /**
+     * How many sessions each routed message was queued for.
+     */
+    final Distribution recipients = new Distribution();
+
+    /**
+     * How long routing one message took, from parsing its header to
+     * having queued it for the last recipient, in nanoseconds.
+     */
+    final Distribution routeNanos = new Distribution();
+
+    /**
+     * How long senders spent getting a frame onto an outbound queue that
+     * was full, in nanoseconds.  This is the only place a sender can be
+     * held up by another client.
+     */
+    final Distribution outboundWaitNanos = new Distribution();
+
+    /**
+     * Lines dropped for going over a rate limit, by the limit, first
+     * for the per-session limits and then for the global ones.
+     */
+    final LongAdder[] throttled = new LongAdder[2 * RateLimiter.Limit.values().length];
+
+    /**
+     * Where the number of named sessions comes from.
+     */
+    private volatile IntSupplier activeSessions = () -> 0;
+
+    private volatile double acceptsPerSecond;
+    private volatile double messagesInPerSecond;
+    private long lastAccepts;
+    private long lastMessagesIn;
+
+    private ScheduledExecutorService timer;
+
+    public ServerMetrics() {
+        for (int i = 0; i < throttled.length; i++) {
+            throttled[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one flush carrying the given number of frames and bytes.
+     */
+    void flushed(int frames, long bytes) {
+        flushes.increment();
+        framesFlushed.add(frames);
+        bytesOut.add(bytes);
+    }
+
+    void accepted() {
+        accepts.increment();
+    }
+
+    void closed() {
+        closes.increment();
+    }
+
+    /**
+     * Records one message that was routed to the given number of
+     * sessions, having started at the given System.nanoTime().
+     */
+    void routed(int recipientCount, long startNanos) {
+        messagesIn.increment();
+        recipients.record(recipientCount);
+        routeNanos.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a sender that found an outbound queue full and had to
+     * make room or wait for it, starting at the given System.nanoTime().
+     */
+    void outboundWaited(long startNanos) {
+        outboundWaitNanos.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a line that was longer than allowed.
+     */
+    void oversized() {
+        oversized.increment();
+    }
+
+    void idleDisconnected() {
+        idleDisconnects.increment();
+    }
+
+    void journaled(int messages) {
+        journaled.add(messages);
+    }
+
+    void journalDropped() {
+        journalDropped.increment();
+    }
+
+    /**
+     * Records one force of the journal, started at the given System.nanoTime().
+     */
+    void journalSynced(long startNanos) {
+        journalSyncNanos.record(System.nanoTime() - startNanos);
+    }
+
+    void mailboxed() {
+        mailboxed.increment();
+    }
+
+    void mailboxRefused() {
+        mailboxRefused.increment();
+    }
+
+    void peerDropped() {
+        peerDropped.increment();
+    }
+
+    /**
+     * Records a line dropped for going over a per-session or a global limit.
+     */
+    void throttled(RateLimiter.Limit limit, boolean global) {
+        throttled[throttledIndex(limit, global)].increment();
+    }
+
+    private static int throttledIndex(RateLimiter.Limit limit, boolean global) {
+        return (global ? RateLimiter.Limit.values().length : 0) + limit.ordinal();
+    }
+
+    /**
+     * Reports the number of named sessions in the given room.
+     */
+    void watch(ChatRoom room) {
+        activeSessions = room::activeSessions;
+    }
+
+    public long getOpenConnections() {
+        return accepts.sum() - closes.sum();
+    }
+
+    public int getActiveSessions() {
+        return activeSessions.getAsInt();
+    }
+
+    public long getAccepts() {
+        return accepts.sum();
+    }
+
+    public double getAcceptsPerSecond() {
+        return acceptsPerSecond;
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    public double getMessagesInPerSecond() {
+        return messagesInPerSecond;
+    }
+
+    public double getRecipientsPerMessageMean() {
+        long count = recipients.count();
+        return count == 0 ? 0 : (double) recipients.sum() / count;
+    }
+
+    public long getRecipientsPerMessageP99() {
+        return recipients.percentile(0.99);
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    /**
+     * The average number of lines coalesced into a single flush.
+     */
+    public double getLinesPerFlush() {
+        long count = flushes.sum();
+        return count == 0 ? 0 : (double) framesFlushed.sum() / count;
+    }
+
+    public long getRouteMicrosP50() {
+        return TimeUnit.NANOSECONDS.toMicros(routeNanos.percentile(0.5));
+    }
+
+    public long getRouteMicrosP99() {
+        return TimeUnit.NANOSECONDS.toMicros(routeNanos.percentile(0.99));
+    }
+
+    public long getRouteMicrosP999() {
+        return TimeUnit.NANOSECONDS.toMicros(routeNanos.percentile(0.999));
+    }
+
+    public long getOutboundWaits() {
+        return outboundWaitNanos.count();
+    }
+
+    public long getOutboundWaitMicrosP99() {
+        return TimeUnit.NANOSECONDS.toMicros(outboundWaitNanos.percentile(0.99));
+    }
+
+    public long getOversizedLines() {
+        return oversized.sum();
+    }
+
+    public long getIdleDisconnects() {
+        return idleDisconnects.sum();
+    }
+
+    public long getJournaledMessages() {
+        return journaled.sum();
+    }
+
+    public long getJournalDropped() {
+        return journalDropped.sum();
+    }
+
+    public long getJournalSyncMicrosP99() {
+        return TimeUnit.NANOSECONDS.toMicros(journalSyncNanos.percentile(0.99));
+    }
+
+    public long getMailboxedMessages() {
+        return mailboxed.sum();
+    }
+
+    public long getMailboxRefused() {
+        return mailboxRefused.sum();
+    }
+
+    public long getPeerDropped() {
+        return peerDropped.sum();
+    }
+
+    public long getThrottledBySessionLimits() {
+        return throttledTotal(false);
+    }
+
+    public long getThrottledByGlobalLimits() {
+        return throttledTotal(true);
+    }
+
+    private long throttledTotal(boolean global) {
+        long total = 0;
+        for (RateLimiter.Limit limit : RateLimiter.Limit.values()) {
+            total += throttled[throttledIndex(limit, global)].sum();
+        }
+        return total;
+    }
+
+    /**
+     * Starts working out the per-second rates.  Until then they read 0.
+     */
+    public synchronized void start() {
+        timer().scheduleAtFixedRate(this::sampleRates, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private void sampleRates() {
+        long acceptsNow = accepts.sum();
+        long messagesNow = messagesIn.sum();
+        acceptsPerSecond = acceptsNow - lastAccepts;
+        messagesInPerSecond = messagesNow - lastMessagesIn;
+        lastAccepts = acceptsNow;
+        lastMessagesIn = messagesNow;
+    }
+
+    /**
+     * Prints a line of statistics every so many seconds.
+     */
+    public synchronized void startReporting(int intervalSeconds) {
+        timer().scheduleAtFixedRate(() -> System.out.println(
+                "sessions=" + getActiveSessions()
+                        + " messages/s=" + (long) messagesInPerSecond
+                        + " flushes=" + flushes.sum()
+                        + " lines=" + framesFlushed.sum()
+                        + String.format(" lines/flush=%.2f", getLinesPerFlush())
+                        + " route-p99-us=" + getRouteMicrosP99()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "chat-stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+
+    /**
+     * Renders every metric in the plain text format that Prometheus and
+     * most other scrapers understand.
+     */
+    String scrape() {
+        StringBuilder text = new StringBuilder();
+        gauge(text, "chat_open_connections", "Connections currently open.", getOpenConnections());
+        gauge(text, "chat_active_sessions", "Sessions that have claimed a name.", getActiveSessions());
+        counter(text, "chat_accepts_total", "Connections accepted.", getAccepts());
+        gauge(text, "chat_accepts_per_second", "Connections accepted in the last second.", acceptsPerSecond);
+        counter(text, "chat_messages_in_total", "Messages received for routing.", getMessagesIn());
+        gauge(text, "chat_messages_in_per_second", "Messages received in the last second.", messagesInPerSecond);
+        counter(text, "chat_bytes_out_total", "Bytes written to clients.", getBytesOut());
+        counter(text, "chat_flushes_total", "Batches of lines written to clients.", getFlushes());
+        counter(text, "chat_lines_out_total", "Lines written to clients.", framesFlushed.sum());
+        counter(text, "chat_oversized_lines_total", "Lines longer than allowed.", getOversizedLines());
+        counter(text, "chat_idle_disconnects_total", "Clients dropped for staying quiet too long.",
+                getIdleDisconnects());
+        counter(text, "chat_journaled_total", "Messages written to the journal.", getJournaledMessages());
+        counter(text, "chat_journal_dropped_total", "Messages left out of the journal because it fell behind.",
+                getJournalDropped());
+        counter(text, "chat_mailboxed_total", "Messages kept for names nobody had.", getMailboxedMessages());
+        counter(text, "chat_mailbox_refused_total", "Messages refused because a mailbox was full.",
+                getMailboxRefused());
+        counter(text, "chat_peer_dropped_total", "Frames for other servers dropped on the way.",
+                getPeerDropped());
+        header(text, "chat_throttled_total", "Lines dropped for going over a rate limit.", "counter");
+        for (boolean global : new boolean[] {false, true}) {
+            for (RateLimiter.Limit limit : RateLimiter.Limit.values()) {
+                text.append("chat_throttled_total{limit=\"").append(limit.name().toLowerCase())
+                        .append("\",scope=\"").append(global ? "global" : "session").append("\"} ")
+                        .append(throttled[throttledIndex(limit, global)].sum())
+                        .append('\n');
+            }
+        }
+        summary(text, "chat_recipients_per_message", "Sessions each message was queued for.", recipients, 1);
+        summary(text, "chat_route_seconds", "Time taken to route one message.", routeNanos, 1e-9);
+        summary(text, "chat_outbound_wait_seconds", "Time senders spent on full outbound queues.",
+                outboundWaitNanos, 1e-9);
+        summary(text, "chat_journal_sync_seconds", "Time taken to force one journal batch to disk.",
+                journalSyncNanos, 1e-9);
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, double value) {
+        header(text, name, help, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder text, String name, String help,
+                                Distribution distribution, double scale) {
+        header(text, name, help, "summary");
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(distribution.percentile(quantile) * scale).append('\n');
+        }
+        text.append(name).append("_sum ").append(distribution.sum() * scale).append('\n');
+        text.append(name).append("_count ").append(distribution.count()).append('\n');
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
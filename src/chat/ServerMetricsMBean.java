@@ -0,0 +1,61 @@
+package chat;
+
+/**
+ * The view of the ServerMetrics published over JMX, under the name
+ * "chat:type=ServerMetrics".  Counters are totals since the server
+ * started; rates are over the last second.
+ */
+public interface ServerMetricsMBean {
+
+    long getOpenConnections();
+
+    int getActiveSessions();
+
+    long getAccepts();
+
+    double getAcceptsPerSecond();
+
+    long getMessagesIn();
+
+    double getMessagesInPerSecond();
+
+    double getRecipientsPerMessageMean();
+
+    long getRecipientsPerMessageP99();
+
+    long getBytesOut();
+
+    long getFlushes();
+
+    double getLinesPerFlush();
+
+    long getRouteMicrosP50();
+
+    long getRouteMicrosP99();
+
+    long getRouteMicrosP999();
+
+    long getOutboundWaits();
+
+    long getOutboundWaitMicrosP99();
+
+    long getOversizedLines();
+
+    long getIdleDisconnects();
+
+    long getJournaledMessages();
+
+    long getJournalDropped();
+
+    long getJournalSyncMicrosP99();
+
+    long getMailboxedMessages();
+
+    long getMailboxRefused();
+
+    long getPeerDropped();
+
+    long getThrottledBySessionLimits();
+
+    long getThrottledByGlobalLimits();
+}
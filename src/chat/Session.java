@@ -0,0 +1,207 @@
+package chat;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One connected client as the rest of the server sees it, no matter
+ * whether it is serviced by a blocking Handler or by an event loop.
+ *
+ * Every session owns a bounded queue of outbound frames.  Senders only
+ * ever put frames on that queue, and each session drains its own queue
+ * to its client, so a client that reads slowly only holds itself up.
+ * What happens when a client falls so far behind that its queue is
+ * full is decided by the configured OverflowPolicy.
+ */
+public abstract class Session {
+
+    /**
+     * The client's screen name, once it has claimed one.
+     */
+    volatile String name;
+
+    /**
+     * Set once the client has been told "NAMEACCEPTED".  Sessions that
+     * have claimed a name but are not accepted yet are not routed to.
+     */
+    volatile boolean accepted;
+
+    /**
+     * The protocol extensions the client asked for.  Only changed before
+     * the client is accepted, so anyone who sees it accepted sees these.
+     */
+    final EnumSet<Capability> capabilities = EnumSet.noneOf(Capability.class);
+
+    /**
+     * Whether the client asked for BINARY framing.  Read by the writer
+     * for every frame, so it is kept apart from the capabilities.
+     */
+    volatile boolean binary;
+
+    /**
+     * Set once the session is going away.  Nothing is queued after that.
+     */
+    volatile boolean closed;
+
+    /**
+     * Set once the client has quit or the server is shutting down.
+     * Nothing more is read from the client after that.
+     */
+    volatile boolean finishing;
+
+    /**
+     * The frames waiting to be written to the client.  A linked queue
+     * only allocates for the frames actually waiting, so idle sessions
+     * stay small however large the bound.
+     */
+    final BlockingQueue<Frame> outbound;
+
+    final ServerMetrics metrics;
+
+    /**
+     * Parses and resolves the lines this client sends.  Created on the
+     * first message, so clients that never talk never pay for it.  Only
+     * used by the thread reading from the client.
+     */
+    private RouteParser routeParser;
+
+    /**
+     * The names of the channels the client is in.  Created on the first
+     * JOIN, and like the parser only used by the thread reading from
+     * the client.
+     */
+    private Set<String> channels;
+
+    /**
+     * What this client may send.  Only used by the thread reading from
+     * the client.
+     */
+    final RateLimiter rateLimiter;
+
+    /**
+     * Set once the client has been told it is throttled, until one of
+     * its lines gets through again, so a flood gets one answer.
+     */
+    boolean throttled;
+
+    /**
+     * The IdleWheel tick the client was last heard from at, and the one
+     * it was last pinged at, for clients that asked for HEARTBEAT.  The
+     * second is only used by the wheel.
+     */
+    volatile long heardTick;
+    long pingedTick;
+
+    private final ServerConfig.OverflowPolicy overflowPolicy;
+    private final long overflowBlockMillis;
+
+    protected Session(ServerConfig config, ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.outbound = new LinkedBlockingQueue<>(config.outboundQueueSize);
+        this.overflowPolicy = config.overflowPolicy;
+        this.overflowBlockMillis = config.overflowBlockMillis;
+        this.rateLimiter = RateLimiter.perSession(config);
+    }
+
+    RouteParser routeParser() {
+        if (routeParser == null) {
+            routeParser = new RouteParser();
+        }
+        return routeParser;
+    }
+
+    Set<String> channels() {
+        if (channels == null) {
+            return Collections.emptySet();
+        }
+        return channels;
+    }
+
+    boolean addChannel(String channel) {
+        if (channels == null) {
+            channels = new HashSet<>();
+        }
+        return channels.add(channel);
+    }
+
+    boolean removeChannel(String channel) {
+        return channels != null && channels.remove(channel);
+    }
+
+    /**
+     * Encodes and queues one protocol line for the client.
+     */
+    final void send(String line) {
+        send(Frame.line(line));
+    }
+
+    /**
+     * Queues an already encoded frame for the client.  The same frame
+     * may be queued for any number of sessions.  Safe to call from any
+     * thread; it only blocks under the BLOCK policy with a full queue.
+     */
+    final void send(Frame frame) {
+        if (closed) {
+            return;
+        }
+        if (!outbound.offer(frame)) {
+            long start = System.nanoTime();
+            switch (overflowPolicy) {
+                case DROP_OLDEST:
+                    // Make room by forgetting what the client has not seen
+                    // yet, rather than holding up whoever is sending.
+                    do {
+                        outbound.poll();
+                    } while (!outbound.offer(frame));
+                    metrics.outboundWaited(start);
+                    break;
+                case DISCONNECT:
+                    disconnect();
+                    return;
+                case BLOCK:
+                    try {
+                        boolean offered = outbound.offer(frame, overflowBlockMillis, TimeUnit.MILLISECONDS);
+                        metrics.outboundWaited(start);
+                        if (!offered) {
+                            disconnect();
+                            return;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    break;
+            }
+        }
+        queued();
+    }
+
+    /**
+     * Called after a frame has been queued, so the session can make
+     * sure somebody is going to write it out.
+     */
+    protected abstract void queued();
+
+    /**
+     * Drops the connection to the client.  May be called from any
+     * thread, and more than once.
+     */
+    protected abstract void disconnect();
+
+    /**
+     * Stops reading from the client, and closes the connection once
+     * everything queued for it has been written, or once the drain time
+     * is up.  May be called from any thread, and more than once.
+     */
+    final void finish() {
+        finishing = true;
+        closeWhenDrained();
+    }
+
+    protected abstract void closeWhenDrained();
+}
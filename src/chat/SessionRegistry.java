@@ -0,0 +1,296 @@
+package chat;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * The registry of all named sessions and of the channels they are in.
+ * Claiming a name and registering the session under it is a single
+ * atomic step, so two clients racing for the same name cannot both
+ * win, and nothing here ever takes a global lock.  Iterating over the
+ * sessions is weakly consistent: it never throws
+ * ConcurrentModificationException while clients come and go, it just
+ * may or may not see the ones that changed meanwhile.
+ */
+public class SessionRegistry {
+
+    /**
+     * The sessions and channels by name.  The names are Keys, so that
+     * the stored names and the NameKeys of lookups are the same kind of
+     * thing and can be compared either way round.
+     */
+    private final ConcurrentHashMap<Key, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Key, Channel> channels = new ConcurrentHashMap<>();
+
+    /**
+     * Bumped after every claim and release, so a snapshot can tell
+     * whether it is still current.
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * The sessions as they were at some version.  Fan-outs read it
+     * instead of walking the map, and it is only rebuilt, by whoever
+     * needs it next, once sessions have come or gone since.
+     */
+    private volatile Snapshot snapshot = new Snapshot(0, new Session[0]);
+
+    /**
+     * Registers the session under the name unless somebody already has
+     * it.  Returns whether the name was claimed.
+     */
+    public boolean claim(String name, Session session) {
+        if (sessions.putIfAbsent(new StringKey(name), session) != null) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Registers the session under the name, either because nobody has
+     * it or because the holder is one the test says the session takes
+     * over from, in a single step.  Returns whoever held the name before,
+     * or null.
+     */
+    Session claimOver(String name, Session session, Predicate<Session> takesOver) {
+        Session[] holder = new Session[1];
+        Session now = sessions.compute(new StringKey(name), (key, current) -> {
+            holder[0] = current;
+            return current == null || takesOver.test(current) ? session : current;
+        });
+        if (now == session) {
+            version.incrementAndGet();
+        }
+        return holder[0];
+    }
+
+    /**
+     * Returns the session registered under the name, or null.
+     */
+    public Session get(String name) {
+        return sessions.get(new StringKey(name));
+    }
+
+    /**
+     * Returns the session registered under the name the key currently
+     * stands for, or null, without making a String of the name.
+     */
+    public Session get(NameKey key) {
+        return sessions.get(key);
+    }
+
+    /**
+     * Gives the name up again, provided it is still held by the session.
+     * Returns whether it was.
+     */
+    public boolean release(String name, Session session) {
+        if (sessions.remove(new StringKey(name), session)) {
+            version.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A live view of all registered sessions.
+     */
+    public Collection<Session> sessions() {
+        return sessions.values();
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * All registered sessions as an array that must not be modified.
+     * While nobody joins or leaves every caller gets the same array, so
+     * a busy room pays for walking the map once per change instead of
+     * once per message.  The array holds at least every session claimed
+     * before the call, just like iterating over sessions() would.
+     */
+    Session[] snapshot() {
+        // The version is read before the map is, so a session claimed
+        // after that read makes the stored snapshot stale straight away.
+        long current = version.get();
+        Snapshot last = snapshot;
+        if (last.version == current) {
+            return last.sessions;
+        }
+        Session[] all = sessions.values().toArray(new Session[0]);
+        snapshot = new Snapshot(current, all);
+        return all;
+    }
+
+    /**
+     * Adds the session to the named channel, creating the channel if
+     * it does not exist yet.  Returns the channel.
+     */
+    Channel joinChannel(String name, Session session) {
+        // Joining and parting happen under the lock of the channel's own
+        // map entry, so a channel is never dropped as empty while somebody
+        // is joining it, and different channels never wait for each other.
+        return channels.compute(new StringKey(name), (key, channel) -> {
+            if (channel == null) {
+                channel = new Channel(name);
+            }
+            channel.members.add(session);
+            return channel;
+        });
+    }
+
+    /**
+     * Takes the session out of the named channel, dropping the channel
+     * once nobody is left in it.  Returns whether the session was in it.
+     */
+    boolean partChannel(String name, Session session) {
+        boolean[] removed = new boolean[1];
+        channels.computeIfPresent(new StringKey(name), (key, channel) -> {
+            removed[0] = channel.members.remove(session);
+            return channel.members.isEmpty() ? null : channel;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Returns the channel with the name, or null.
+     */
+    Channel channel(String name) {
+        return channels.get(new StringKey(name));
+    }
+
+    /**
+     * Returns the channel with the name the key currently stands for,
+     * or null.
+     */
+    Channel channel(NameKey key) {
+        return channels.get(key);
+    }
+
+    private static final class Snapshot {
+        final long version;
+        final Session[] sessions;
+
+        Snapshot(long version, Session[] sessions) {
+            this.version = version;
+            this.sessions = sessions;
+        }
+    }
+
+    /**
+     * A name as the registry's maps know it: a run of characters, with
+     * the hashCode() a String of them would have.  Every kind of Key
+     * equals every other kind holding the same characters, so it does
+     * not matter to the maps which side of a comparison is which.
+     */
+    abstract static class Key {
+
+        abstract int length();
+
+        abstract char charAt(int index);
+
+        @Override
+        public abstract int hashCode();
+
+        @Override
+        public final boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            int length = length();
+            if (key.length() != length || key.hashCode() != hashCode()) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (key.charAt(i) != charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The name a session or channel is stored under.
+     */
+    private static final class StringKey extends Key {
+        private final String name;
+
+        StringKey(String name) {
+            this.name = name;
+        }
+
+        @Override
+        int length() {
+            return name.length();
+        }
+
+        @Override
+        char charAt(int index) {
+            return name.charAt(index);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+
+    /**
+     * A reusable stand-in for a name that is a range of characters in
+     * some larger text, so a session or channel can be looked up without
+     * the name ever being copied out of the text.  It is only meant for
+     * lookups, never to be stored, since it changes whenever it is
+     * pointed somewhere else.
+     */
+    static final class NameKey extends Key {
+        private CharSequence text;
+        private int start;
+        private int end;
+        private int hash;
+
+        /**
+         * Points the key at text[start, end) and returns it.
+         */
+        NameKey of(CharSequence text, int start, int end) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + text.charAt(i);
+            }
+            this.hash = h;
+            return this;
+        }
+
+        /**
+         * Lets go of the text.
+         */
+        void clear() {
+            text = null;
+        }
+
+        @Override
+        int length() {
+            return end - start;
+        }
+
+        @Override
+        char charAt(int index) {
+            return text.charAt(start + index);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that refills at a steady rate and holds at most one
+ * second's worth of tokens.  It is kept as the single time at which the
+ * bucket would be full again, so taking tokens is one compare and set
+ * and the same bucket can be shared by any number of threads without
+ * a lock.
+ */
+final class TokenBucket {
+
+    private final long nanosPerToken;
+    private final long burstNanos;
+
+    /**
+     * The time, on the System.nanoTime() clock, by which everything
+     * taken so far has been paid back.
+     */
+    private final AtomicLong paidUntil;
+
+    TokenBucket(long tokensPerSecond) {
+        this.nanosPerToken = Math.max(1, TimeUnit.SECONDS.toNanos(1) / tokensPerSecond);
+        this.burstNanos = nanosPerToken * tokensPerSecond;
+        this.paidUntil = new AtomicLong(System.nanoTime() - burstNanos);
+    }
+
+    /**
+     * Takes the given number of tokens if the bucket holds that many,
+     * and returns whether it did.  Nothing is taken otherwise.
+     */
+    boolean tryTake(long tokens) {
+        long cost = tokens * nanosPerToken;
+        while (true) {
+            long now = System.nanoTime();
+            long paid = paidUntil.get();
+            long next = Math.max(paid, now - burstNanos) + cost;
+            if (next - now > 0) {
+                return false;
+            }
+            if (paidUntil.compareAndSet(paid, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Puts back tokens that were taken.  The bucket never holds more
+     * than a second's worth, however much is put back.
+     */
+    void giveBack(long tokens) {
+        paidUntil.addAndGet(-tokens * nanosPerToken);
+    }
+}
@@ -0,0 +1,53 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that QUIT and a shutdown say goodbye before the room lets a
+ * client go, and that users leaving during a shutdown are not
+ * announced to the others.
+ */
+class ChatRoomTest {
+
+    private final ServerConfig config = new ServerConfig();
+    private final ChatRoom room = new ChatRoom(config);
+
+    @Test
+    void quitSaysByeAndThenFinishes() {
+        RecordingSession alice = new RecordingSession(config).join(room, "alice");
+        RecordingSession bob = new RecordingSession(config).join(room, "bob");
+        alice.take();
+
+        room.route(alice, "QUIT".getBytes(Frame.CHARSET), Frame.CHARSET);
+        assertEquals(List.of("BYE"), alice.take());
+        assertTrue(alice.finished);
+        assertFalse(alice.disconnected);
+
+        // The others hear of it once the connection is gone
+        room.leave(alice);
+        assertEquals(List.of("REMOVE_USERalice"), bob.take());
+    }
+
+    @Test
+    void shutdownTellsEveryClient() {
+        RecordingSession alice = new RecordingSession(config).join(room, "alice");
+        RecordingSession bob = new RecordingSession(config).join(room, "bob");
+        RecordingSession unnamed = new RecordingSession(config);
+        room.greet(unnamed);
+        alice.take();
+        unnamed.take();
+
+        room.shutdown();
+        for (RecordingSession session : List.of(alice, bob, unnamed)) {
+            assertEquals(List.of("SERVER_SHUTDOWN"), session.take());
+            assertTrue(session.finished);
+        }
+        room.leave(alice);
+        assertTrue(bob.take().isEmpty());
+    }
+}
@@ -0,0 +1,102 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks how a server settles two claims to the same name, with itself
+ * as server 2 between servers 1 and 3, where the lower id keeps the
+ * name, and that it journals the messages other servers pass on.
+ */
+class ClusterTest {
+
+    @TempDir
+    Path directory;
+
+    private final ServerConfig config = new ServerConfig();
+    private final Cluster cluster;
+    private final Cluster.Peer one;
+    private final Cluster.Peer three;
+    private final ChatRoom room;
+    private final RecordingSession alice;
+
+    ClusterTest() {
+        config.nodeId = 2;
+        cluster = new Cluster(config, new ServerMetrics());
+        one = cluster.new Peer(1, "localhost", 1);
+        three = cluster.new Peer(3, "localhost", 1);
+        room = new ChatRoom(config, null, cluster);
+        alice = new RecordingSession(config).join(room, "alice");
+    }
+
+    @Test
+    void lowerServerTakesTheNameOverFromAHigherOne() {
+        room.remoteClaimed(remote(three, "nimal"));
+        room.remoteClaimed(remote(one, "nimal"));
+        assertEquals(List.of("NEW_USERnimal", "REMOVE_USERnimal", "NEW_USERnimal"), alice.take());
+
+        // And the higher one claiming again changes nothing
+        room.remoteClaimed(remote(three, "nimal"));
+        room.remoteClaimed(remote(one, "nimal"));
+        assertTrue(alice.take().isEmpty());
+
+        // Nor does it once it gives up a name it never got
+        room.remoteReleased(three, "nimal");
+        assertTrue(alice.take().isEmpty());
+    }
+
+    @Test
+    void localUserGivesWayToALowerServer() {
+        RecordingSession kamal = new RecordingSession(config).join(room, "kamal");
+        alice.take();
+        room.remoteClaimed(remote(one, "kamal"));
+        assertEquals(List.of("NAME_CONFLICT"), kamal.take());
+        assertTrue(kamal.finished);
+        assertTrue(alice.take().isEmpty());
+
+        // The name goes over once the local user is gone
+        room.leave(kamal);
+        assertEquals(List.of("REMOVE_USERkamal", "NEW_USERkamal"), alice.take());
+    }
+
+    @Test
+    void localUserKeepsTheNameFromAHigherServer() {
+        RecordingSession saman = new RecordingSession(config).join(room, "saman");
+        alice.take();
+        room.remoteClaimed(remote(three, "saman"));
+        assertFalse(saman.finished);
+        assertTrue(saman.take().isEmpty());
+        assertTrue(alice.take().isEmpty());
+    }
+
+    @Test
+    void journalsWhatOtherServersPassOn() throws Exception {
+        config.journalDirectory = directory.toString();
+        config.journalFsync = false;
+        MessageJournal journal = new MessageJournal(config, new ServerMetrics());
+        journal.start();
+        ChatRoom journaled = new ChatRoom(config, journal, cluster);
+        byte[] text = "nimal: hi".getBytes(StandardCharsets.UTF_8);
+        journaled.deliver("ALL", Frame.message("", text, 0, text.length, StandardCharsets.UTF_8));
+        journaled.deliver("ALL", Frame.line("SERVER_SHUTDOWN"));
+        journal.close();
+
+        MessageJournal.Cursor cursor = journal.cursor(1);
+        MessageJournal.Record record = cursor.next();
+        assertEquals("ALL", record.audience);
+        assertEquals("nimal: hi", new String(record.payload, StandardCharsets.UTF_8));
+        assertNull(cursor.next());
+    }
+
+    private RemoteSession remote(Cluster.Peer peer, String name) {
+        return new RemoteSession(config, new ServerMetrics(), peer, name);
+    }
+}
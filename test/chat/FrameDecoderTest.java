@@ -0,0 +1,203 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the line and frame limits of FrameDecoder, with the bytes
+ * arriving in one piece and in pieces of every size.
+ */
+class FrameDecoderTest {
+
+    private static final int MAX = 16;
+
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    @Test
+    void cutsLinesWhereverTheReadsEnd() throws IOException {
+        byte[] bytes = ascii("hello\r\nworld\n\nlast\n");
+        for (int chunk = 1; chunk <= bytes.length; chunk++) {
+            List<byte[]> lines = decode(decoder(ServerConfig.OversizePolicy.DISCONNECT), bytes, chunk);
+            assertLines(lines, "hello", "world", "", "last");
+        }
+    }
+
+    @Test
+    void takesLinesOfTheMaximumLength() throws IOException {
+        String longest = "x".repeat(MAX);
+        byte[] bytes = ascii(longest + "\r\n" + longest + "\n");
+        for (int chunk = 1; chunk <= bytes.length; chunk++) {
+            List<byte[]> lines = decode(decoder(ServerConfig.OversizePolicy.DISCONNECT), bytes, chunk);
+            assertLines(lines, longest, longest);
+        }
+    }
+
+    @Test
+    void failsOnALongerLineUnderDisconnect() {
+        byte[] bytes = ascii("x".repeat(MAX + 1) + "\n");
+        for (int chunk = 1; chunk <= bytes.length; chunk++) {
+            int size = chunk;
+            assertThrows(IOException.class,
+                    () -> decode(decoder(ServerConfig.OversizePolicy.DISCONNECT), bytes, size));
+        }
+        // Without a line end in sight it fails as soon as it cannot fit
+        FrameDecoder decoder = decoder(ServerConfig.OversizePolicy.DISCONNECT);
+        assertThrows(IOException.class, () -> decoder.next(ByteBuffer.wrap(ascii("y".repeat(MAX + 2)))));
+    }
+
+    @Test
+    void rejectsALongerLineAndCarriesOn() throws IOException {
+        byte[] bytes = ascii("a".repeat(5 * MAX) + "\nok\n");
+        for (int chunk = 1; chunk <= bytes.length; chunk++) {
+            List<byte[]> lines = decode(decoder(ServerConfig.OversizePolicy.REJECT), bytes, chunk);
+            assertEquals(2, lines.size());
+            assertSame(FrameDecoder.REJECTED, lines.get(0));
+            assertArrayEquals(ascii("ok"), lines.get(1));
+        }
+        assertEquals(bytes.length, metrics.getOversizedLines());
+    }
+
+    @Test
+    void truncatesALongerLineAndCarriesOn() throws IOException {
+        byte[] bytes = ascii("0123456789abcdefghijklmnopqrstuvwxyz\nok\n");
+        for (int chunk = 1; chunk <= bytes.length; chunk++) {
+            List<byte[]> lines = decode(decoder(ServerConfig.OversizePolicy.TRUNCATE), bytes, chunk);
+            assertLines(lines, "0123456789abcdef", "ok");
+        }
+    }
+
+    @Test
+    void skipsALongLineThatHasNotEndedYet() throws IOException {
+        FrameDecoder decoder = decoder(ServerConfig.OversizePolicy.REJECT);
+        byte[] flood = ascii("z".repeat(64 * 1024));
+        for (int i = 0; i < 64; i++) {
+            assertNull(decoder.next(ByteBuffer.wrap(flood)));
+        }
+        ByteBuffer rest = ByteBuffer.wrap(ascii("zz\nok\n"));
+        assertSame(FrameDecoder.REJECTED, decoder.next(rest));
+        assertArrayEquals(ascii("ok"), decoder.next(rest));
+    }
+
+    @Test
+    void cutsFramesWhereverTheReadsEnd() throws IOException {
+        byte[] longest = "é".repeat(MAX / 2).getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = join(Frame.encode(Frame.LINE, ascii("bob")),
+                Frame.encode(Frame.MESSAGE, longest),
+                Frame.encode(Frame.LINE, new byte[0]));
+        for (int chunk = 1; chunk <= bytes.length; chunk++) {
+            FrameDecoder decoder = decoder(ServerConfig.OversizePolicy.DISCONNECT);
+            decoder.binary = true;
+            List<byte[]> units = new ArrayList<>();
+            List<Byte> opcodes = new ArrayList<>();
+            for (int start = 0; start < bytes.length; start += chunk) {
+                ByteBuffer in = ByteBuffer.wrap(bytes, start, Math.min(chunk, bytes.length - start));
+                byte[] unit;
+                while ((unit = decoder.next(in)) != null) {
+                    units.add(unit);
+                    opcodes.add(decoder.opcode());
+                }
+            }
+            assertEquals(3, units.size());
+            assertArrayEquals(ascii("bob"), units.get(0));
+            assertArrayEquals(longest, units.get(1));
+            assertArrayEquals(new byte[0], units.get(2));
+            assertEquals(List.of(Frame.LINE, Frame.MESSAGE, Frame.LINE), opcodes);
+        }
+    }
+
+    @Test
+    void rejectsALongerFrameFromItsHeader() throws IOException {
+        byte[] frame = Frame.encode(Frame.MESSAGE, new byte[1000]);
+        byte[] bytes = join(frame, Frame.encode(Frame.LINE, ascii("ok")));
+        for (int chunk = 1; chunk <= bytes.length; chunk++) {
+            FrameDecoder decoder = decoder(ServerConfig.OversizePolicy.REJECT);
+            decoder.binary = true;
+            List<byte[]> units = decode(decoder, bytes, chunk);
+            assertEquals(2, units.size());
+            assertSame(FrameDecoder.REJECTED, units.get(0));
+            assertArrayEquals(ascii("ok"), units.get(1));
+        }
+
+        // Under DISCONNECT the header alone is enough to fail
+        FrameDecoder decoder = decoder(ServerConfig.OversizePolicy.DISCONNECT);
+        decoder.binary = true;
+        assertThrows(IOException.class, () -> decoder.next(ByteBuffer.wrap(frame, 0, 3)));
+    }
+
+    @Test
+    void failsOnMalformedFrames() {
+        FrameDecoder unknown = new FrameDecoder(MAX);
+        unknown.binary = true;
+        assertThrows(IOException.class, () -> unknown.next(ByteBuffer.wrap(new byte[] {7, 1, 'x'})));
+
+        FrameDecoder endless = new FrameDecoder(MAX);
+        endless.binary = true;
+        byte[] length = {Frame.LINE, -1, -1, -1, -1, -1, -1, 1};
+        assertThrows(IOException.class, () -> endless.next(ByteBuffer.wrap(length)));
+
+        FrameDecoder overflowing = new FrameDecoder();
+        overflowing.binary = true;
+        byte[] tooLong = {Frame.LINE, -1, -1, -1, -1, 15};
+        assertThrows(IOException.class, () -> overflowing.next(ByteBuffer.wrap(tooLong)));
+
+        // Bits above the 32nd would be shifted out, leaving a length of 0
+        FrameDecoder wrapping = new FrameDecoder();
+        wrapping.binary = true;
+        byte[] wrapped = {Frame.LINE, -128, -128, -128, -128, 0x10};
+        assertThrows(IOException.class, () -> wrapping.next(ByteBuffer.wrap(wrapped)));
+    }
+
+    private FrameDecoder decoder(ServerConfig.OversizePolicy policy) {
+        ServerConfig config = new ServerConfig();
+        config.maxLineBytes = MAX;
+        config.oversizePolicy = policy;
+        return new FrameDecoder(config, metrics);
+    }
+
+    /**
+     * Hands the bytes to the decoder in pieces of the given size and
+     * collects whatever it hands out.
+     */
+    private static List<byte[]> decode(FrameDecoder decoder, byte[] bytes, int chunk) throws IOException {
+        List<byte[]> units = new ArrayList<>();
+        for (int start = 0; start < bytes.length; start += chunk) {
+            ByteBuffer in = ByteBuffer.wrap(bytes, start, Math.min(chunk, bytes.length - start));
+            byte[] unit;
+            while ((unit = decoder.next(in)) != null) {
+                units.add(unit);
+            }
+        }
+        return units;
+    }
+
+    private static void assertLines(List<byte[]> lines, String... expected) {
+        List<String> actual = new ArrayList<>();
+        for (byte[] line : lines) {
+            actual.add(new String(line, StandardCharsets.US_ASCII));
+        }
+        assertEquals(Arrays.asList(expected), actual);
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] join(byte[]... parts) {
+        ByteBuffer joined = ByteBuffer.allocate(Arrays.stream(parts).mapToInt(part -> part.length).sum());
+        for (byte[] part : parts) {
+            joined.put(part);
+        }
+        return joined.array();
+    }
+}
@@ -0,0 +1,77 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that HISTORY is only offered with a journal, and that LAST
+ * finds its start across the rings and many segments, more than one
+ * slice of the replay deep.
+ */
+class HistoryTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void offeredOnlyWithAJournal() throws Exception {
+        ServerConfig config = new ServerConfig();
+        RecordingSession without = new RecordingSession(config);
+        new ChatRoom(config, null).greet(without);
+        assertFalse(without.take().get(0).contains("HISTORY"));
+
+        MessageJournal journal = journal(config);
+        RecordingSession with = new RecordingSession(config);
+        new ChatRoom(config, journal).greet(with);
+        assertTrue(with.take().get(0).endsWith(" HISTORY"));
+        journal.close();
+    }
+
+    @Test
+    void lastReachesBackThroughTheSegments() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.journalSegmentBytes = 1024;
+        config.historySize = 20;
+        MessageJournal journal = journal(config);
+        for (int sequence = 1; sequence <= 1500; sequence++) {
+            journal.append("bob", "ALL", Frame.line("message " + sequence));
+        }
+        ChatRoom room = new ChatRoom(config, journal);
+        RecordingSession alice = new RecordingSession(config).join(room, "alice");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (journal.lastSequence() < 1500) {
+            assertTrue(System.nanoTime() < deadline, "not written in time");
+            Thread.sleep(1);
+        }
+
+        room.route(alice, "HISTORY LAST 1000".getBytes(Frame.CHARSET), Frame.CHARSET);
+        List<String> lines = new ArrayList<>();
+        while (lines.isEmpty() || !lines.get(lines.size() - 1).startsWith("HISTORY_END")) {
+            assertTrue(System.nanoTime() < deadline, "no answer in time");
+            Thread.sleep(1);
+            lines.addAll(alice.take());
+        }
+        assertEquals(1001, lines.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("HISTORY " + (501 + i) + " message " + (501 + i), lines.get(i));
+        }
+        assertEquals("HISTORY_END 1500", lines.get(1000));
+        journal.close();
+    }
+
+    private MessageJournal journal(ServerConfig config) throws Exception {
+        config.journalDirectory = directory.toString();
+        config.journalFsync = false;
+        MessageJournal journal = new MessageJournal(config, new ServerMetrics());
+        journal.start();
+        return journal;
+    }
+}
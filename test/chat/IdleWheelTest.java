@@ -0,0 +1,69 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the wheel pings a client once when it goes quiet, puts
+ * it back when it is heard from, and drops it when it stays quiet.
+ */
+class IdleWheelTest {
+
+    private final ServerConfig config = new ServerConfig();
+    private final IdleWheel wheel = new IdleWheel(3, 6);
+
+    @Test
+    void pingsOnceAndThenDrops() {
+        RecordingSession session = new RecordingSession(config);
+        wheel.track(session);
+        advance(2);
+        assertTrue(session.take().isEmpty());
+        advance(1);
+        assertEquals(List.of("PING 3"), session.take());
+        advance(2);
+        assertFalse(session.disconnected);
+        advance(1);
+        assertTrue(session.take().isEmpty());
+        assertTrue(session.disconnected);
+    }
+
+    @Test
+    void hearingFromTheClientPutsItBack() {
+        RecordingSession session = new RecordingSession(config);
+        wheel.track(session);
+        advance(3);
+        assertEquals(List.of("PING 3"), session.take());
+        advance(1);
+        wheel.heard(session);
+
+        // Quiet again from tick 4, so pinged at 7 and dropped at 10
+        advance(2);
+        assertTrue(session.take().isEmpty());
+        advance(1);
+        assertEquals(List.of("PING 7"), session.take());
+        advance(2);
+        assertFalse(session.disconnected);
+        advance(1);
+        assertTrue(session.disconnected);
+    }
+
+    @Test
+    void forgetsClosedSessions() {
+        RecordingSession session = new RecordingSession(config);
+        wheel.track(session);
+        session.closed = true;
+        advance(10);
+        assertTrue(session.take().isEmpty());
+        assertFalse(session.disconnected);
+    }
+
+    private void advance(int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            wheel.advance();
+        }
+    }
+}
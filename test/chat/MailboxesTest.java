@@ -0,0 +1,73 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the limits on what the mailboxes hold, and that a message to
+ * a name nobody has reaches whoever takes the name next.
+ */
+class MailboxesTest {
+
+    private final ServerConfig config = new ServerConfig();
+
+    @Test
+    void refusesWhatDoesNotFit() {
+        config.mailboxSize = 2;
+        config.mailboxUsers = 2;
+        config.mailboxBytes = 100;
+        config.mailboxTotalBytes = 150;
+        Mailboxes mailboxes = new Mailboxes(config);
+
+        // Too many messages, too many bytes for one mailbox, too many names
+        assertTrue(mailboxes.store("sunil", bytes(10)));
+        assertTrue(mailboxes.store("sunil", bytes(10)));
+        assertFalse(mailboxes.store("sunil", bytes(10)));
+        assertFalse(mailboxes.store("kamal", bytes(97)));
+        assertTrue(mailboxes.store("kamal", bytes(96)));
+        assertFalse(mailboxes.store("nimal", bytes(1)));
+
+        // All of them together
+        assertEquals(2, mailboxes.take("sunil").count());
+        assertNull(mailboxes.take("sunil"));
+        assertTrue(mailboxes.store("nimal", bytes(46)));
+        assertFalse(mailboxes.store("nimal", bytes(1)));
+        assertEquals(1, mailboxes.take("kamal").count());
+        assertTrue(mailboxes.store("nimal", bytes(1)));
+    }
+
+    @Test
+    void deliversWhenTheNameIsTaken() {
+        ChatRoom room = new ChatRoom(config);
+        RecordingSession alice = new RecordingSession(config).join(room, "alice");
+        room.route(alice, "sunil>>are you there".getBytes(Frame.CHARSET), Frame.CHARSET);
+        room.route(alice, "sunil>>call me".getBytes(Frame.CHARSET), Frame.CHARSET);
+        assertEquals(List.of("MAILBOXED sunil", "MESSAGE alice: are you there",
+                "MAILBOXED sunil", "MESSAGE alice: call me"), alice.take());
+
+        RecordingSession sunil = new RecordingSession(config);
+        room.greet(sunil);
+        room.handshake(sunil, "sunil");
+        List<String> lines = sunil.take();
+        int at = lines.indexOf("MAILBOX 2");
+        assertTrue(at > 0, lines.toString());
+        assertEquals(List.of("MESSAGE alice: are you there", "MESSAGE alice: call me"), lines.subList(at + 1, at + 3));
+
+        // And only once
+        room.leave(sunil);
+        RecordingSession again = new RecordingSession(config);
+        room.greet(again);
+        room.handshake(again, "sunil");
+        assertFalse(again.take().contains("MAILBOX 2"));
+    }
+
+    private static byte[] bytes(int length) {
+        return "x".repeat(length).getBytes(StandardCharsets.UTF_8);
+    }
+}
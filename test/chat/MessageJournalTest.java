@@ -0,0 +1,228 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that the journal picks up after a crash where the last segment
+ * ends in a torn record or in garbage, that cursors read across segments
+ * and carry on as the newest one grows, and that a record broken on disk
+ * is reported rather than skipped.
+ */
+class MessageJournalTest {
+
+    @TempDir
+    Path directory;
+
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    @Test
+    void recoversFromATornLastRecord() throws Exception {
+        write(config(), 1, 50);
+        Path segment = only(segments());
+        long[] ends = recordEnds(segment);
+        assertEquals(50, ends.length);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(ends[49] - 5);
+        }
+
+        MessageJournal journal = open(config());
+        assertEquals(49, journal.lastSequence());
+        assertEquals(ends[48], Files.size(segment));
+        journal.start();
+        journal.append("bob", "ALL", Frame.line("again"));
+        journal.close();
+
+        assertEquals(50, journal.lastSequence());
+        MessageJournal.Cursor cursor = journal.cursor(1);
+        for (long sequence = 1; sequence <= 49; sequence++) {
+            assertRecord(cursor.next(), sequence, "message " + sequence);
+        }
+        assertRecord(cursor.next(), 50, "again");
+        assertNull(cursor.next());
+    }
+
+    @Test
+    void cutsOffGarbageAfterTheLastRecord() throws Exception {
+        write(config(), 1, 20);
+        Path segment = only(segments());
+        long size = Files.size(segment);
+        byte[] garbage = new byte[300];
+        ByteBuffer.wrap(garbage).putInt(200).putLong(21);
+        Files.write(segment, garbage, StandardOpenOption.APPEND);
+
+        MessageJournal journal = open(config());
+        assertEquals(20, journal.lastSequence());
+        assertEquals(size, Files.size(segment));
+        journal.close();
+
+        write(config(), 21, 30);
+        MessageJournal.Cursor cursor = open(config()).cursor(18);
+        for (long sequence = 18; sequence <= 30; sequence++) {
+            assertRecord(cursor.next(), sequence, "message " + sequence);
+        }
+        assertNull(cursor.next());
+    }
+
+    @Test
+    void readsAcrossSegments() throws Exception {
+        ServerConfig config = config();
+        config.journalSegmentBytes = 1024;
+        MessageJournal journal = write(config, 1, 200);
+        assertTrue(segments().size() > 5);
+
+        MessageJournal.Cursor cursor = journal.cursor(0);
+        for (long sequence = 1; sequence <= 200; sequence++) {
+            assertRecord(cursor.next(), sequence, "message " + sequence);
+        }
+        assertNull(cursor.next());
+
+        cursor = journal.cursor(137);
+        assertRecord(cursor.next(), 137, "message 137");
+        assertTrue(journal.segmentStart(137) <= 137);
+        assertEquals(-1, journal.segmentStart(0));
+
+        // And a journal opened again knows them all
+        MessageJournal reopened = open(config);
+        assertEquals(200, reopened.lastSequence());
+        assertRecord(reopened.cursor(5).next(), 5, "message 5");
+    }
+
+    @Test
+    void followsTheNewestSegmentAsItGrows() throws Exception {
+        MessageJournal journal = open(config());
+        journal.start();
+        append(journal, 1, 10);
+        awaitWritten(journal, 10);
+        MessageJournal.Cursor cursor = journal.cursor(1);
+        for (long sequence = 1; sequence <= 10; sequence++) {
+            assertRecord(cursor.next(), sequence, "message " + sequence);
+        }
+        assertNull(cursor.next());
+
+        append(journal, 11, 20);
+        awaitWritten(journal, 20);
+        for (long sequence = 11; sequence <= 20; sequence++) {
+            assertRecord(cursor.next(), sequence, "message " + sequence);
+        }
+        assertNull(cursor.next());
+        journal.close();
+    }
+
+    @Test
+    void reportsABrokenRecord() throws Exception {
+        ServerConfig config = config();
+        config.journalSegmentBytes = 1024;
+        MessageJournal journal = write(config, 1, 100);
+        Path segment = segments().get(1);
+        long[] ends = recordEnds(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The middle of the third record of the segment
+            ByteBuffer flipped = ByteBuffer.allocate(1);
+            long at = (ends[1] + ends[2]) / 2;
+            channel.read(flipped, at);
+            flipped.put(0, (byte) ~flipped.get(0)).rewind();
+            channel.write(flipped, at);
+        }
+
+        long first = Long.parseLong(segment.getFileName().toString().replace(".log", ""));
+        MessageJournal.Cursor cursor = journal.cursor(first);
+        assertRecord(cursor.next(), first, "message " + first);
+        assertRecord(cursor.next(), first + 1, "message " + (first + 1));
+        IOException broken = assertThrows(IOException.class, cursor::next);
+        assertTrue(broken.getMessage().contains("record " + (first + 2)), broken.getMessage());
+
+        // The segments around it still read
+        assertRecord(journal.cursor(1).next(), 1, "message 1");
+        assertRecord(journal.cursor(100).next(), 100, "message 100");
+    }
+
+    private ServerConfig config() {
+        ServerConfig config = new ServerConfig();
+        config.journalDirectory = directory.toString();
+        config.journalFsync = false;
+        return config;
+    }
+
+    private MessageJournal open(ServerConfig config) throws IOException {
+        return new MessageJournal(config, metrics);
+    }
+
+    /**
+     * Opens the journal, writes the messages numbered from first to last
+     * and closes it again.
+     */
+    private MessageJournal write(ServerConfig config, long first, long last) throws Exception {
+        MessageJournal journal = open(config);
+        assertEquals(first - 1, journal.lastSequence());
+        journal.start();
+        append(journal, first, last);
+        journal.close();
+        assertEquals(last, journal.lastSequence());
+        return journal;
+    }
+
+    private static void append(MessageJournal journal, long first, long last) {
+        for (long sequence = first; sequence <= last; sequence++) {
+            journal.append("bob", "ALL", Frame.line("message " + sequence));
+        }
+    }
+
+    private static void awaitWritten(MessageJournal journal, long sequence) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (journal.lastSequence() < sequence) {
+            assertTrue(System.nanoTime() < deadline, "not written in time");
+            Thread.sleep(1);
+        }
+    }
+
+    private static void assertRecord(MessageJournal.Record record, long sequence, String text) {
+        assertNotNull(record, () -> "record " + sequence);
+        assertEquals(sequence, record.sequence);
+        assertEquals("bob", record.sender);
+        assertEquals("ALL", record.audience);
+        assertEquals(text, new String(record.payload, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Where each whole record of the segment ends.
+     */
+    private static long[] recordEnds(Path segment) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(segment));
+        long[] ends = new long[bytes.capacity()];
+        int count = 0;
+        while (MessageJournal.read(bytes) != null) {
+            ends[count++] = bytes.position();
+        }
+        return Arrays.copyOf(ends, count);
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".log")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static Path only(List<Path> segments) {
+        assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+}
@@ -0,0 +1,229 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32C;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a MessageRing drops its oldest messages, and only those,
+ * as it wraps around by slots and by bytes, that growing keeps what it
+ * held, and that readers racing the writer never get a message that was
+ * written over while they read it.
+ */
+class MessageRingTest {
+
+    @Test
+    void wrapsAroundBySlots() {
+        MessageRing ring = new MessageRing(8, 1024 * 1024, 1);
+        for (long sequence = 1; sequence <= 100; sequence++) {
+            ring.add(sequence, record(sequence, payload(sequence, 10)));
+        }
+        assertEquals(100, ring.head());
+        assertEquals(92, ring.tail());
+        assertEquals(93, ring.completeFrom());
+        for (long position = ring.tail(); position < ring.head(); position++) {
+            assertHolds(ring, position, position + 1, 10);
+        }
+        assertEquals(-1, ring.sequence(91));
+        assertNull(ring.read(91));
+    }
+
+    @Test
+    void wrapsAroundByBytes() {
+        MessageRing ring = new MessageRing(64, 1024, 1);
+        Random random = new Random(23);
+        int[] lengths = new int[2000];
+        for (int i = 0; i < lengths.length; i++) {
+            long sequence = i + 1;
+            lengths[i] = random.nextInt(200);
+            ring.add(sequence, record(sequence, payload(sequence, lengths[i])));
+
+            // Everything from the tail on is there, and the tail message
+            // is where the room is complete from
+            assertEquals(i + 1, ring.head());
+            assertTrue(ring.tail() <= ring.head());
+            assertEquals(ring.tail() + 1, ring.completeFrom());
+            for (long position = ring.tail(); position < ring.head(); position++) {
+                assertHolds(ring, position, position + 1, lengths[(int) position]);
+            }
+        }
+        assertTrue(ring.tail() > 0);
+    }
+
+    @Test
+    void dropsEverythingForAMessageTooBigToKeep() {
+        MessageRing ring = new MessageRing(64, 1024, 1);
+        for (long sequence = 1; sequence <= 3; sequence++) {
+            ring.add(sequence, record(sequence, payload(sequence, 10)));
+        }
+        ring.add(4, record(4, payload(4, 2000)));
+        assertEquals(ring.head(), ring.tail());
+        assertEquals(5, ring.completeFrom());
+        assertEquals(4, ring.newest());
+
+        ring.add(5, record(5, payload(5, 10)));
+        assertEquals(5, ring.completeFrom());
+        assertHolds(ring, ring.tail(), 5, 10);
+    }
+
+    @Test
+    void growsWithoutDroppingAnything() {
+        MessageRing ring = new MessageRing(1000, 1024 * 1024, 1);
+        long small = ring.size();
+        for (long sequence = 1; sequence <= 1000; sequence++) {
+            ByteBuffer record = record(sequence, payload(sequence, 100));
+            if (ring.sizeToHold(record.remaining()) > ring.size()) {
+                ring.grow(record.remaining());
+            }
+            ring.add(sequence, record);
+        }
+        assertTrue(ring.size() > small);
+        assertEquals(0, ring.tail());
+        assertEquals(1, ring.completeFrom());
+        for (long position = 0; position < 1000; position++) {
+            assertHolds(ring, position, position + 1, 100);
+        }
+
+        // At its limits it no longer grows, and wraps around instead
+        long size = ring.size();
+        ByteBuffer record = record(1001, payload(1001, 100));
+        assertEquals(size, ring.sizeToHold(record.remaining()));
+        ring.add(1001, record);
+        assertEquals(1, ring.tail());
+        assertEquals(2, ring.completeFrom());
+    }
+
+    @Test
+    void findsBySequenceNumber() {
+        MessageRing ring = new MessageRing(16, 1024 * 1024, 1);
+        // Other rooms take the numbers in between
+        for (long position = 0; position < 40; position++) {
+            long sequence = 3 * position + 1;
+            ring.add(sequence, record(sequence, payload(sequence, 5)));
+        }
+        assertEquals(24, ring.tail());
+        assertEquals(24, ring.find(0));
+        assertEquals(24, ring.find(73));
+        assertEquals(25, ring.find(74));
+        assertEquals(30, ring.find(91));
+        assertEquals(39, ring.find(118));
+        assertEquals(40, ring.find(119));
+    }
+
+    @Test
+    void readersNeverSeeTornMessages() throws InterruptedException {
+        MessageRing ring = new MessageRing(256, 32 * 1024, 1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicLong whole = new AtomicLong();
+        AtomicLong dropped = new AtomicLong();
+        long count = 300_000;
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread[] readers = new Thread[3];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (writing.get()) {
+                        // The tail first, so that it is no later than the head
+                        long from = Math.max(0, ring.tail() - 8);
+                        long head = ring.head();
+                        if (head == from) {
+                            continue;
+                        }
+                        long position = from + random.nextLong(head - from);
+                        MessageJournal.Record record = ring.read(position);
+                        if (record == null) {
+                            dropped.incrementAndGet();
+                            continue;
+                        }
+                        assertEquals(position + 1, record.sequence);
+                        assertArrayEquals(payload(record.sequence, record.payload.length), record.payload);
+                        whole.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            readers[i].start();
+        }
+
+        Random random = new Random(18);
+        for (long sequence = 1; sequence <= count && failure.get() == null; sequence++) {
+            ByteBuffer record = record(sequence, payload(sequence, length(sequence, random)));
+            if (ring.sizeToHold(record.remaining()) > ring.size()) {
+                ring.grow(record.remaining());
+            }
+            ring.add(sequence, record);
+        }
+        writing.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(whole.get() > 0);
+        assertTrue(dropped.get() > 0);
+        assertEquals(count, ring.head());
+    }
+
+    private static void assertHolds(MessageRing ring, long position, long sequence, int length) {
+        assertEquals(sequence, ring.sequence(position));
+        MessageJournal.Record record = ring.read(position);
+        assertNotNull(record, () -> "position " + position);
+        assertEquals(sequence, record.sequence);
+        assertEquals("ALL", record.audience);
+        assertArrayEquals(payload(sequence, length), record.payload);
+    }
+
+    /**
+     * Message lengths for the race, mostly short with the odd long one,
+     * so that messages wrap around the end of the data at every offset.
+     */
+    private static int length(long sequence, Random random) {
+        return sequence % 97 == 0 ? 2000 + random.nextInt(4000) : random.nextInt(300);
+    }
+
+    /**
+     * A payload that tells which message it belongs to throughout.
+     */
+    private static byte[] payload(long sequence, int length) {
+        byte[] payload = new byte[length];
+        Arrays.fill(payload, (byte) sequence);
+        return payload;
+    }
+
+    /**
+     * A record encoded the way the journal writes it.
+     */
+    private static ByteBuffer record(long sequence, byte[] payload) {
+        byte[] sender = "bob".getBytes(StandardCharsets.UTF_8);
+        byte[] audience = "ALL".getBytes(StandardCharsets.UTF_8);
+        int size = 4 + 8 + 8 + 4 + sender.length + 4 + audience.length + 4 + payload.length + 4;
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.putInt(size - 8);
+        record.putLong(sequence);
+        record.putLong(System.currentTimeMillis());
+        record.putInt(sender.length).put(sender);
+        record.putInt(audience.length).put(audience);
+        record.putInt(payload.length).put(payload);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 4, record.position() - 4);
+        record.putInt((int) crc.getValue());
+        return record.flip();
+    }
+}
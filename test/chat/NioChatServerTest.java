@@ -0,0 +1,114 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks over real connections that a client leaving with QUIT, or
+ * being let go by a shutdown, gets everything queued for it and the
+ * goodbye before the connection is closed.
+ */
+class NioChatServerTest {
+
+    private final ServerConfig config = new ServerConfig();
+    private ChatRoom room;
+    private NioChatServer server;
+
+    @BeforeEach
+    void start() throws Exception {
+        try (ServerSocket free = new ServerSocket(0)) {
+            config.port = free.getLocalPort();
+        }
+        room = new ChatRoom(config);
+        server = new NioChatServer(room, config, new ServerMetrics());
+        Thread accepting = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "chat-accept");
+        accepting.setDaemon(true);
+        accepting.start();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        server.close();
+    }
+
+    @Test
+    void quitIsAnsweredAfterWhatWasQueued() throws Exception {
+        try (Socket socket = connect()) {
+            BufferedReader in = reader(socket);
+            PrintWriter out = writer(socket);
+            join(in, out, "alice");
+            for (int i = 0; i < 100; i++) {
+                out.println("alice>>message " + i);
+            }
+            out.println("QUIT");
+            for (int i = 0; i < 100; i++) {
+                assertEquals("MESSAGE alice: Couldn't find the receiver(s). Message: message " + i, in.readLine());
+            }
+            assertEquals("BYE", in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+
+    @Test
+    void shutdownSaysSoAndCloses() throws Exception {
+        try (Socket socket = connect()) {
+            BufferedReader in = reader(socket);
+            join(in, writer(socket), "bob");
+            server.close();
+            room.shutdown();
+            assertEquals("SERVER_SHUTDOWN", in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+
+    private static void join(BufferedReader in, PrintWriter out, String name) throws IOException {
+        assertTrue(in.readLine().startsWith("SUBMITNAME"));
+        out.println(name);
+        assertTrue(in.readLine().startsWith("NAMEACCEPTED"));
+        // Up to the user list, which ends with ourselves
+        String line;
+        while (!(line = in.readLine()).equals("NEW_USER" + name)) {
+            assertTrue(line.startsWith("NEW_USER"), line);
+        }
+    }
+
+    private Socket connect() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try {
+                Socket socket = new Socket("localhost", config.port);
+                socket.setSoTimeout(10_000);
+                return socket;
+            } catch (IOException e) {
+                assertTrue(System.nanoTime() < deadline, "server did not start");
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), Frame.CHARSET));
+    }
+
+    private static PrintWriter writer(Socket socket) throws IOException {
+        return new PrintWriter(socket.getOutputStream(), true, Frame.CHARSET);
+    }
+}
@@ -0,0 +1,91 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the token buckets, and that the room only throttles messages
+ * and only charges a sender for what it was let through.
+ */
+class RateLimiterTest {
+
+    @Test
+    void bucketHoldsOneSecondsWorth() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(10);
+        assertTrue(bucket.tryTake(10));
+        assertFalse(bucket.tryTake(1));
+        Thread.sleep(250);
+        assertTrue(bucket.tryTake(1));
+
+        // Putting back more than was taken does not raise the burst
+        bucket.giveBack(100);
+        assertTrue(bucket.tryTake(10));
+        assertFalse(bucket.tryTake(1));
+    }
+
+    @Test
+    void bucketTakesNothingWhenItRefuses() {
+        TokenBucket bucket = new TokenBucket(10);
+        assertFalse(bucket.tryTake(11));
+        assertTrue(bucket.tryTake(10));
+    }
+
+    @Test
+    void lineOverTheByteLimitKeepsItsMessageToken() {
+        RateLimiter limiter = new RateLimiter(1, 100, 0);
+        assertEquals(RateLimiter.Limit.BYTES, limiter.admitLine(101));
+        assertNull(limiter.admitLine(100));
+        assertEquals(RateLimiter.Limit.MESSAGES, limiter.admitLine(1));
+    }
+
+    @Test
+    void throttledClientCanStillTalkToTheServer() {
+        ServerConfig config = new ServerConfig();
+        config.rateMessages = 2;
+        ChatRoom room = new ChatRoom(config);
+        RecordingSession alice = new RecordingSession(config).join(room, "alice");
+        new RecordingSession(config).join(room, "bob");
+        alice.take();
+
+        send(room, alice, "ALL>>one");
+        send(room, alice, "ALL>>two");
+        send(room, alice, "ALL>>three");
+        assertEquals(List.of("MESSAGE alice: one", "MESSAGE alice: two", "THROTTLED MESSAGES"), alice.take());
+
+        send(room, alice, "PING 7");
+        send(room, alice, "PONG 8");
+        send(room, alice, "HISTORY LAST 5");
+        send(room, alice, "QUIT");
+        assertEquals(List.of("PONG 7", "HISTORY_END 0", "BYE"), alice.take());
+        assertTrue(alice.finished);
+    }
+
+    @Test
+    void globalLimitDoesNotChargeTheSender() {
+        ServerConfig config = new ServerConfig();
+        config.rateMessages = 1;
+        config.rateRecipients = 10;
+        config.globalRateMessages = 1;
+        ChatRoom room = new ChatRoom(config);
+        RecordingSession alice = new RecordingSession(config).join(room, "alice");
+        RecordingSession bob = new RecordingSession(config).join(room, "bob");
+
+        send(room, alice, "bob>>hi");
+        assertEquals(List.of("MESSAGE alice: hi"), bob.take());
+        send(room, bob, "alice>>hi");
+        assertEquals(List.of("THROTTLED MESSAGES"), bob.take());
+
+        // Bob's own allowance is untouched by the line the server refused
+        assertNull(bob.rateLimiter.admitLine(8));
+        assertTrue(bob.rateLimiter.admitRecipients(10));
+    }
+
+    private static void send(ChatRoom room, Session session, String line) {
+        room.route(session, line.getBytes(Frame.CHARSET), Frame.CHARSET);
+    }
+}
@@ -0,0 +1,72 @@
+package chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A session without a connection, which keeps the lines queued for it
+ * so tests can look at them, and remembers whether it was disconnected
+ * or finished.
+ */
+class RecordingSession extends Session {
+
+    private final List<String> lines = new ArrayList<>();
+
+    volatile boolean disconnected;
+    volatile boolean finished;
+
+    RecordingSession(ServerConfig config) {
+        super(config, new ServerMetrics());
+    }
+
+    @Override
+    protected synchronized void queued() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Frame frame;
+        while ((frame = outbound.poll()) != null) {
+            try {
+                frame.writeTo(bytes, false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        String text = bytes.toString(Frame.CHARSET);
+        lines.addAll(Arrays.asList(text.split(Frame.LINE_SEPARATOR)));
+    }
+
+    @Override
+    protected void disconnect() {
+        disconnected = true;
+    }
+
+    @Override
+    protected void closeWhenDrained() {
+        finished = true;
+    }
+
+    /**
+     * The lines queued for the session since the last call.
+     */
+    synchronized List<String> take() {
+        List<String> taken = new ArrayList<>(lines);
+        lines.clear();
+        return taken;
+    }
+
+    /**
+     * Joins the room under the name and forgets what it was told on
+     * joining.
+     */
+    RecordingSession join(ChatRoom room, String name) {
+        room.greet(this);
+        if (!room.handshake(this, name)) {
+            throw new IllegalStateException("Could not join as " + name);
+        }
+        take();
+        return this;
+    }
+}
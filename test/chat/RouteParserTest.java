@@ -0,0 +1,162 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks RouteParser against the split() based routing it replaced, on
+ * lines made up at random of the characters that matter to the header.
+ */
+class RouteParserTest {
+
+    private static final int LINES = 2_000_000;
+    private static final String ALPHABET = "abcsAL,>>>x é";
+
+    private final SessionRegistry registry = new SessionRegistry();
+    private final RouteParser parser = new RouteParser();
+    private Session sender;
+
+    @BeforeEach
+    void register() {
+        ServerConfig config = new ServerConfig();
+        ServerMetrics metrics = new ServerMetrics();
+        sender = session(config, metrics, "s", true);
+        for (String name : new String[] {"a", "b", "ab", "é"}) {
+            session(config, metrics, name, true);
+        }
+        // Claimed, but not accepted yet, so never routed to
+        session(config, metrics, "c", false);
+    }
+
+    @Test
+    void matchesSplitOnRandomLines() {
+        Random random = new Random(20261015);
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            line.setLength(0);
+            int length = random.nextInt(14);
+            for (int j = 0; j < length; j++) {
+                line.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            String text = line.toString();
+            check(text, parser.parse(text), false);
+            check(text, parser.parse(text.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8), true);
+        }
+    }
+
+    @Test
+    void keepsTheSplitEdgeCases() {
+        assertFalse(parser.parse("ALL>>"));
+        assertFalse(parser.parse("a>>b>>c"));
+        assertFalse(parser.parse("no header"));
+        assertTrue(parser.parse("a>>b>>"));
+        assertEquals("b", "a>>b>>".substring(parser.bodyStart(), parser.bodyEnd()));
+        assertTrue(parser.parse("ALL,,>>hi"));
+        assertTrue(parser.isBroadcast());
+        assertTrue(parser.parse(",ALL>>hi"));
+        assertFalse(parser.isBroadcast());
+    }
+
+    @Test
+    void deliversOnceToReceiversNamedTwice() {
+        assertTrue(parser.parse("a,b,a,s,b>>hi"));
+        assertEquals(3, parser.resolve(registry, sender));
+        assertSame(sender, parser.recipient(0));
+    }
+
+    @Test
+    void notesEachMissingNameOnce() {
+        assertTrue(parser.parse("zed,a,zed,c>>hi"));
+        assertEquals(2, parser.resolve(registry, sender));
+        assertEquals(2, parser.absentCount());
+        assertEquals("zed", parser.absent(0));
+        assertEquals("c", parser.absent(1));
+    }
+
+    /**
+     * Compares what the parser made of the line with what the old code
+     * made of it.
+     */
+    private void check(String line, boolean routable, boolean fromBytes) {
+        String[] parts = line.split(">>");
+        assertEquals(parts.length == 2, routable, () -> "routable: \"" + line + "\"");
+        if (!routable) {
+            return;
+        }
+        String[] receivers = parts[0].split(",");
+        boolean broadcast = receivers.length == 1 && receivers[0].equals("ALL");
+        assertEquals(broadcast, parser.isBroadcast(), () -> "broadcast: \"" + line + "\"");
+        String body = fromBytes
+                ? new String(line.getBytes(StandardCharsets.UTF_8), parser.bodyStart(),
+                        parser.bodyEnd() - parser.bodyStart(), StandardCharsets.UTF_8)
+                : line.substring(parser.bodyStart(), parser.bodyEnd());
+        assertEquals(parts[1], body, () -> "body: \"" + line + "\"");
+        if (broadcast) {
+            return;
+        }
+
+        Set<Session> expected = new HashSet<>();
+        expected.add(sender);
+        Set<String> absent = new LinkedHashSet<>();
+        for (String name : receivers) {
+            Session session = registry.get(name);
+            if (session != null && session.accepted) {
+                expected.add(session);
+            } else if (!name.isEmpty()) {
+                absent.add(name);
+            }
+        }
+        int count = parser.resolve(registry, sender);
+        Set<Session> resolved = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            resolved.add(parser.recipient(i));
+        }
+        assertEquals(count, resolved.size(), () -> "delivered twice: \"" + line + "\"");
+        assertEquals(expected, resolved, () -> "recipients: \"" + line + "\"");
+        Set<String> noted = new LinkedHashSet<>();
+        for (int i = 0; i < parser.absentCount(); i++) {
+            noted.add(parser.absent(i));
+        }
+        assertEquals(absent, noted, () -> "absent: \"" + line + "\"");
+    }
+
+    private Session session(ServerConfig config, ServerMetrics metrics, String name, boolean accepted) {
+        Session session = new Idle(config, metrics);
+        session.name = name;
+        session.accepted = accepted;
+        registry.claim(name, session);
+        return session;
+    }
+
+    /**
+     * A session that is only ever looked up, never written to.
+     */
+    private static final class Idle extends Session {
+
+        Idle(ServerConfig config, ServerMetrics metrics) {
+            super(config, metrics);
+        }
+
+        @Override
+        protected void queued() {
+        }
+
+        @Override
+        protected void disconnect() {
+        }
+
+        @Override
+        protected void closeWhenDrained() {
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that names looked up as ranges of a line find what was stored
+ * under them as Strings, and that the keys compare the same either way
+ * round.
+ */
+class SessionRegistryTest {
+
+    private final ServerConfig config = new ServerConfig();
+    private final SessionRegistry registry = new SessionRegistry();
+
+    @Test
+    void findsSessionsAndChannelsByRange() {
+        Session kamal = new RecordingSession(config);
+        registry.claim("Kamal", kamal);
+        Channel dev = registry.joinChannel("#dev", kamal);
+        SessionRegistry.NameKey key = new SessionRegistry.NameKey();
+
+        String header = "Nimal,Kamal,#dev,Kama";
+        assertSame(kamal, registry.get(key.of(header, 6, 11)));
+        assertSame(dev, registry.channel(key.of(header, 12, 16)));
+        assertNull(registry.get(key.of(header, 0, 5)));
+        assertNull(registry.get(key.of(header, 17, 21)));
+        assertNull(registry.channel(key.of(header, 6, 11)));
+    }
+
+    @Test
+    void keysAreEqualBothWaysRound() {
+        SessionRegistry.NameKey one = new SessionRegistry.NameKey().of("to Kamal", 3, 8);
+        SessionRegistry.NameKey other = new SessionRegistry.NameKey().of("Kamal>>hi", 0, 5);
+        assertEquals(one, other);
+        assertEquals(other, one);
+        assertEquals("Kamal".hashCode(), one.hashCode());
+        assertEquals(one.hashCode(), other.hashCode());
+
+        // Not a String, from either side
+        assertNotEquals(one, "Kamal");
+        assertNotEquals("Kamal", one);
+    }
+
+    @Test
+    void releasesOnlyTheHolder() {
+        Session first = new RecordingSession(config);
+        Session second = new RecordingSession(config);
+        registry.claim("Saman", first);
+        assertFalse(registry.claim("Saman", second));
+        assertFalse(registry.release("Saman", second));
+        assertTrue(registry.release("Saman", first));
+        assertNull(registry.get("Saman"));
+    }
+}
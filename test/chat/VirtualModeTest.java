@@ -0,0 +1,87 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledForJreRange;
+import org.junit.jupiter.api.condition.JRE;
+
+/**
+ * Starts the server with its handlers on virtual threads and has two
+ * clients talk through it.  Only runs on Java 21 or later, see the
+ * java21 profile.
+ */
+@EnabledForJreRange(min = JRE.JAVA_21)
+class VirtualModeTest {
+
+    @Test
+    void clientsTalkThroughVirtualThreads() throws Exception {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        String[] args = {"--mode=virtual", "--port=" + port};
+        Thread server = new Thread(() -> {
+            try {
+                ChatServer.main(args);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "chat-server");
+        server.setDaemon(true);
+        server.start();
+
+        try (Client nimal = new Client(port, "nimal"); Client kamal = new Client(port, "kamal")) {
+            nimal.out.println("kamal>>hi");
+            String line;
+            while ((line = kamal.in.readLine()) != null && !line.startsWith("MESSAGE")) {
+                // Who else is here
+            }
+            assertEquals("MESSAGE nimal: hi", line);
+        }
+    }
+
+    /**
+     * A client that has joined under the name.
+     */
+    private static final class Client implements AutoCloseable {
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+
+        Client(int port, String name) throws Exception {
+            socket = connect(port);
+            socket.setSoTimeout(10_000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), Frame.CHARSET));
+            out = new PrintWriter(socket.getOutputStream(), true, Frame.CHARSET);
+            assertTrue(in.readLine().startsWith("SUBMITNAME"));
+            out.println(name);
+            assertTrue(in.readLine().startsWith("NAMEACCEPTED"));
+        }
+
+        private static Socket connect(int port) throws Exception {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (true) {
+                try {
+                    return new Socket("localhost", port);
+                } catch (IOException e) {
+                    assertTrue(System.nanoTime() < deadline, "server did not start");
+                    Thread.sleep(10);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}